@@ -0,0 +1,157 @@
+package mango.whale.face;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test of the feature mask cache (the masks are OpenCV Mats, so it needs the native library)
+ */
+@RunWith(AndroidJUnit4.class)
+public class FeatureMaskCacheTest {
+    // a 10x10 CV_8UC1 mask
+    private static final int MASK_BYTES = 100;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        System.loadLibrary("opencv_java3");
+    }
+
+
+    private static Mat mask(int value) {
+        return new Mat(10, 10, CvType.CV_8UC1, new Scalar(value));
+    }
+
+
+    private static FeatureMaskCache.Key key(int... points) {
+        return new FeatureMaskCache.Key(new int[]{10, 10, 3}, points);
+    }
+
+
+    @Test
+    public void get_sharesThePixelsOfTheCachedMask() throws Exception {
+        FeatureMaskCache cache = new FeatureMaskCache(10 * MASK_BYTES, 2);
+        Mat mask = mask(7);
+        cache.put(key(0, 0, 4, 4), mask);
+        mask.release();
+
+        Mat cached = cache.get(key(0, 0, 4, 4));
+        assertNotNull(cached);
+        assertEquals(7, cached.get(5, 5)[0], 0);
+        Mat again = cache.get(key(0, 0, 4, 4));
+        assertEquals(cached.dataAddr(), again.dataAddr());
+        assertNull(cache.get(key(0, 0, 4, 6)));
+        assertEquals(2, cache.getHitNum());
+        assertEquals(1, cache.getMissNum());
+        cached.release();
+        again.release();
+    }
+
+
+    @Test
+    public void put_copiesTheKey() throws Exception {
+        FeatureMaskCache cache = new FeatureMaskCache(10 * MASK_BYTES, 2);
+        FeatureMaskCache.Key key = new FeatureMaskCache.Key();
+        key.set(new int[]{10, 10, 3}, new int[]{0, 0, 4, 4});
+        Mat mask = mask(1);
+        cache.put(key, mask);
+        // the caller reuses its key for the next lookup
+        key.set(new int[]{10, 10, 3}, new int[]{2, 2, 6, 6});
+
+        Mat cached = cache.get(key(0, 0, 4, 4));
+        assertNotNull(cached);
+        assertNull(cache.get(key));
+        cached.release();
+        mask.release();
+    }
+
+
+    @Test
+    public void put_evictsTheLeastRecentlyUsedMask() throws Exception {
+        FeatureMaskCache cache = new FeatureMaskCache(2 * MASK_BYTES, 2);
+        Mat a = mask(1);
+        Mat b = mask(2);
+        Mat c = mask(3);
+        cache.put(key(0, 0), a);
+        cache.put(key(2, 2), b);
+        // a is used after b, so b is evicted for c
+        cache.get(key(0, 0)).release();
+        cache.put(key(4, 4), c);
+
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictionNum());
+        assertNull(cache.get(key(2, 2)));
+        Mat cachedA = cache.get(key(0, 0));
+        Mat cachedC = cache.get(key(4, 4));
+        assertNotNull(cachedA);
+        assertNotNull(cachedC);
+        cachedA.release();
+        cachedC.release();
+        a.release();
+        b.release();
+        c.release();
+    }
+
+
+    @Test
+    public void bytes_stayWithinTheBudget() throws Exception {
+        FeatureMaskCache cache = new FeatureMaskCache(3 * MASK_BYTES, 2);
+        for (int i = 0; i < 10; ++i) {
+            Mat mask = mask(i);
+            cache.put(key(i, i), mask);
+            mask.release();
+            assertTrue(cache.getBytes() <= 3 * MASK_BYTES);
+        }
+        assertEquals(3 * MASK_BYTES, cache.getBytes());
+        assertEquals(3, cache.getSize());
+        assertEquals(7, cache.getEvictionNum());
+
+        // replacing a mask does not count it twice
+        Mat mask = mask(42);
+        cache.put(key(9, 9), mask);
+        assertEquals(3 * MASK_BYTES, cache.getBytes());
+
+        cache.setMaxBytes(MASK_BYTES);
+        assertEquals(MASK_BYTES, cache.getBytes());
+        assertEquals(1, cache.getSize());
+        cache.clear();
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getSize());
+        mask.release();
+    }
+
+
+    @Test
+    public void put_ignoresMasksLargerThanTheBudget() throws Exception {
+        FeatureMaskCache cache = new FeatureMaskCache(MASK_BYTES - 1, 2);
+        Mat mask = mask(1);
+        cache.put(key(0, 0), mask);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+        mask.release();
+    }
+
+
+    @Test
+    public void setGrid_dropsTheMasks() throws Exception {
+        FeatureMaskCache cache = new FeatureMaskCache(10 * MASK_BYTES, 2);
+        assertEquals(4, cache.snap(4));
+        assertEquals(6, cache.snap(5));
+        Mat mask = mask(1);
+        cache.put(key(0, 0), mask);
+
+        cache.setGrid(2);
+        assertEquals(1, cache.getSize());
+        cache.setGrid(4);
+        assertEquals(0, cache.getSize());
+        assertEquals(8, cache.snap(7));
+        mask.release();
+    }
+}
@@ -0,0 +1,91 @@
+package mango.whale.pipeline;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test of the coordinate transform (it maps android.graphics Points and Rects, which are not
+ * available to local unit tests)
+ */
+@RunWith(AndroidJUnit4.class)
+public class CoordinateTransformTest {
+    private static final float EPSILON = 1e-4f;
+
+
+    @Test
+    public void between_mapsThePixelCenters() throws Exception {
+        CoordinateTransform up = CoordinateTransform.between(320, 240, 640, 480);
+        // pixel 0 covers [-1/2, 1/2) and maps onto [-1/2, 3/2), whose center is 1/2
+        assertEquals(0.5f, up.mapX(0), EPSILON);
+        assertEquals(638.5f, up.mapX(319), EPSILON);
+        assertEquals(0.5f, up.mapY(0), EPSILON);
+        // the image edges map onto each other
+        assertEquals(-0.5f, up.mapX(-0.5f), EPSILON);
+        assertEquals(639.5f, up.mapX(319.5f), EPSILON);
+        assertEquals(479.5f, up.mapY(239.5f), EPSILON);
+
+        CoordinateTransform down = CoordinateTransform.between(640, 480, 160, 120);
+        // pixel 1 covers [1/2, 3/2) and maps onto [-1/4, 1/8)
+        assertEquals(-0.125f, down.mapX(1), EPSILON);
+    }
+
+
+    @Test
+    public void map_roundsToTheNearestPixel() throws Exception {
+        CoordinateTransform transform = CoordinateTransform.between(640, 480, 320, 240);
+        Point point = new Point(100, 51);
+        transform.map(point, point);
+        // 100 * 0.5 - 0.25 = 49.75, 51 * 0.5 - 0.25 = 25.25
+        assertEquals(50, point.x);
+        assertEquals(25, point.y);
+    }
+
+
+    @Test
+    public void mapRect_mapsThePixelEdges() throws Exception {
+        CoordinateTransform transform = CoordinateTransform.between(320, 240, 640, 480);
+        Rect rect = new Rect(10, 20, 110, 220);
+        transform.mapRect(rect, rect);
+        assertEquals(20, rect.left);
+        assertEquals(40, rect.top);
+        assertEquals(220, rect.right);
+        assertEquals(440, rect.bottom);
+
+        // the whole image maps onto the whole image
+        Rect image = new Rect(0, 0, 672, 504);
+        CoordinateTransform.between(672, 504, 320, 240).mapRect(image, image);
+        assertEquals(0, image.left);
+        assertEquals(0, image.top);
+        assertEquals(320, image.right);
+        assertEquals(240, image.bottom);
+    }
+
+
+    @Test
+    public void inverse_undoesTheTransform() throws Exception {
+        CoordinateTransform transform = CoordinateTransform.between(320, 240, 640, 480);
+        CoordinateTransform inverse = transform.inverse();
+        assertEquals(123.25f, inverse.mapX(transform.mapX(123.25f)), EPSILON);
+        assertEquals(77f, inverse.mapY(transform.mapY(77f)), EPSILON);
+        assertEquals(0.5f, inverse.getScaleX(), EPSILON);
+    }
+
+
+    @Test
+    public void then_composesTheTransforms() throws Exception {
+        CoordinateTransform first = CoordinateTransform.between(160, 120, 320, 240);
+        CoordinateTransform second = CoordinateTransform.between(320, 240, 640, 480);
+        CoordinateTransform composed = first.then(second);
+        CoordinateTransform direct = CoordinateTransform.between(160, 120, 640, 480);
+
+        assertEquals(direct.getScaleX(), composed.getScaleX(), EPSILON);
+        assertEquals(direct.mapX(17), composed.mapX(17), EPSILON);
+        assertEquals(direct.mapY(99), composed.mapY(99), EPSILON);
+    }
+}
@@ -0,0 +1,114 @@
+package mango.whale.pipeline;
+
+import android.graphics.Rect;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test of the detection scheduler (the motion score is computed on OpenCV Mats, so it needs
+ * the native library)
+ */
+@RunWith(AndroidJUnit4.class)
+public class DetectionSchedulerTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final float REUSE_THRESHOLD = 2f;
+    private static final float DETECT_THRESHOLD = 20f;
+    private static final int MAX_SKIP_INTERVAL = 5;
+
+    private DetectionScheduler scheduler;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        System.loadLibrary("opencv_java3");
+    }
+
+
+    @Before
+    public void setUp() {
+        scheduler = new DetectionScheduler(80, 60, REUSE_THRESHOLD, DETECT_THRESHOLD, MAX_SKIP_INTERVAL);
+    }
+
+
+    @After
+    public void tearDown() {
+        scheduler.release();
+    }
+
+
+    private DetectionScheduler.Decision schedule(int value, boolean lost, boolean stale) {
+        Mat gray = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, new Scalar(value));
+        DetectionScheduler.Decision decision = scheduler.schedule(gray, lost, stale);
+        gray.release();
+        return decision;
+    }
+
+
+    @Test
+    public void decisions_followTheMotionScore() throws Exception {
+        // the first frame has no motion score
+        assertEquals(DetectionScheduler.Decision.DETECT, schedule(100, false, false));
+        assertEquals(DetectionScheduler.Decision.REUSE, schedule(100, false, false));
+        assertEquals(0, scheduler.getScore(), 1e-3);
+        assertEquals(DetectionScheduler.Decision.TRACK, schedule(110, false, false));
+        assertEquals(10, scheduler.getScore(), 1e-3);
+        assertEquals(DetectionScheduler.Decision.DETECT, schedule(120, false, true));
+        assertEquals(DetectionScheduler.Decision.DETECT, schedule(150, false, false));
+        // still subjects are reused even if the tracking is stale, lost faces are always detected
+        assertEquals(DetectionScheduler.Decision.REUSE, schedule(150, false, true));
+        assertEquals(DetectionScheduler.Decision.DETECT, schedule(150, true, false));
+
+        assertEquals(4, scheduler.getDecisionNum(DetectionScheduler.Decision.DETECT));
+        assertEquals(1, scheduler.getDecisionNum(DetectionScheduler.Decision.TRACK));
+        assertEquals(2, scheduler.getDecisionNum(DetectionScheduler.Decision.REUSE));
+        assertEquals(3 / 7f, scheduler.getSkipRatio(), 1e-3);
+    }
+
+
+    @Test
+    public void maxSkipInterval_forcesADetection() throws Exception {
+        assertEquals(DetectionScheduler.Decision.DETECT, schedule(100, false, false));
+        for (int i = 0; i < MAX_SKIP_INTERVAL; ++i) {
+            assertEquals(DetectionScheduler.Decision.REUSE, schedule(100, false, false));
+        }
+        assertEquals(DetectionScheduler.Decision.DETECT, schedule(100, false, false));
+        assertEquals(DetectionScheduler.Decision.REUSE, schedule(100, false, false));
+    }
+
+
+    @Test
+    public void motion_isOnlyMeasuredInsideTheFaceBox() throws Exception {
+        scheduler.setFaceBox(200, 60, 300, 180);
+        Rect box = new Rect();
+        assertTrue(scheduler.getFaceBox(box));
+        assertEquals(200, box.left);
+        assertEquals(180, box.bottom);
+
+        Mat gray = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, new Scalar(100));
+        scheduler.schedule(gray, false, false);
+        // the left half of the frame changes a lot, the face box does not
+        Mat left = gray.submat(0, HEIGHT, 0, WIDTH / 2);
+        left.setTo(new Scalar(200));
+        left.release();
+        assertEquals(DetectionScheduler.Decision.REUSE, scheduler.schedule(gray, false, false));
+
+        // without the box the whole frame counts
+        scheduler.clearFaceBox();
+        assertFalse(scheduler.getFaceBox(box));
+        Mat right = gray.submat(0, HEIGHT, WIDTH / 2, WIDTH);
+        right.setTo(new Scalar(200));
+        right.release();
+        assertEquals(DetectionScheduler.Decision.DETECT, scheduler.schedule(gray, false, false));
+        gray.release();
+    }
+}
@@ -0,0 +1,127 @@
+package mango.whale.pipeline;
+
+import android.graphics.Point;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test of the landmark Kalman filter (it works on android.graphics.Point, which is not available
+ * to local unit tests)
+ */
+@RunWith(AndroidJUnit4.class)
+public class LandmarkFilterTest {
+    private static ArrayList<Point> landmarks(int... coordinates) {
+        ArrayList<Point> points = new ArrayList<>();
+        for (int i = 0; i + 1 < coordinates.length; i += 2) {
+            points.add(new Point(coordinates[i], coordinates[i+1]));
+        }
+        return points;
+    }
+
+
+    @Test
+    public void firstMeasurement_initializesTheTrack() throws Exception {
+        LandmarkFilter filter = new LandmarkFilter();
+        filter.setTrackNum(1);
+        filter.filter(0, landmarks(10, 20, 30, 40));
+
+        ArrayList<Point> filtered = filter.getLandmarks(0);
+        assertEquals(2, filtered.size());
+        assertEquals(10, filtered.get(0).x);
+        assertEquals(40, filtered.get(1).y);
+        assertEquals(0, filter.getInnovation(0), 0);
+        // the innovation is not known before the first correction
+        assertFalse(filter.isPredictable());
+    }
+
+
+    @Test
+    public void steadyLandmarks_arePredictable() throws Exception {
+        LandmarkFilter filter = new LandmarkFilter();
+        filter.setTrackNum(1);
+        for (int i = 0; i < 5; ++i) {
+            filter.filter(0, landmarks(10, 20, 30, 40));
+        }
+
+        assertEquals(10, filter.getLandmarks(0).get(0).x);
+        assertEquals(20, filter.getLandmarks(0).get(0).y);
+        assertEquals(0, filter.getInnovation(0), 1e-3);
+        assertTrue(filter.isPredictable());
+    }
+
+
+    @Test
+    public void constantVelocity_isLearnedAndPredicted() throws Exception {
+        LandmarkFilter filter = new LandmarkFilter();
+        filter.setTrackNum(1);
+        int x = 0;
+        for (int i = 0; i < 30; ++i, x += 2) {
+            filter.filter(0, landmarks(100 + x, 50));
+        }
+        assertTrue(filter.getInnovation(0) < 1.5f);
+        assertTrue(filter.isPredictable());
+
+        // without a measurement the track moves on at its velocity
+        int last = filter.getLandmarks(0).get(0).x;
+        filter.predict(0);
+        assertEquals(last + 2, filter.getLandmarks(0).get(0).x);
+        assertEquals(50, filter.getLandmarks(0).get(0).y);
+    }
+
+
+    @Test
+    public void jump_isSmoothedAndNotPredictable() throws Exception {
+        LandmarkFilter filter = new LandmarkFilter();
+        filter.setTrackNum(1);
+        for (int i = 0; i < 10; ++i) {
+            filter.filter(0, landmarks(100, 100));
+        }
+        filter.filter(0, landmarks(110, 100));
+
+        int x = filter.getLandmarks(0).get(0).x;
+        assertTrue(x > 100);
+        assertTrue(x < 110);
+        assertEquals(10, filter.getInnovation(0), 1e-3);
+        assertFalse(filter.isPredictable());
+    }
+
+
+    @Test
+    public void trackNumChange_startsOver() throws Exception {
+        LandmarkFilter filter = new LandmarkFilter();
+        filter.setTrackNum(1);
+        filter.filter(0, landmarks(10, 10));
+        filter.filter(0, landmarks(10, 10));
+        assertTrue(filter.isPredictable());
+
+        filter.setTrackNum(2);
+        assertEquals(2, filter.getTrackNum());
+        assertFalse(filter.isPredictable());
+        filter.filter(0, landmarks(50, 50));
+        assertEquals(50, filter.getLandmarks(0).get(0).x);
+    }
+
+
+    @Test
+    public void getLandmarks_mapsTheUnroundedPositions() throws Exception {
+        LandmarkFilter filter = new LandmarkFilter();
+        filter.setTrackNum(1);
+        filter.filter(0, landmarks(10, 20, 0, 0));
+
+        ArrayList<Point> mapped = new ArrayList<>();
+        mapped.add(new Point());
+        mapped.add(new Point());
+        mapped.add(new Point());
+        filter.getLandmarks(0, CoordinateTransform.between(320, 240, 640, 480), mapped);
+        assertEquals(2, mapped.size());
+        // pixel centers: x' = 2x + 1/2
+        assertEquals(21, mapped.get(0).x);
+        assertEquals(41, mapped.get(0).y);
+    }
+}
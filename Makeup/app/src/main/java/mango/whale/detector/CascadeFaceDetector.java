@@ -0,0 +1,47 @@
+package mango.whale.detector;
+
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+import mango.whale.dlib.FaceDet;
+import mango.whale.dlib.VisionDetRet;
+
+/**
+ * The LBP cascade classifier (biggest face only), searching around the prior first
+ */
+public class CascadeFaceDetector implements FaceDetectorBackend {
+    private final FaceDet mFaceDet;
+
+
+
+    public CascadeFaceDetector(String landMarkPath, String classifierPath) {
+        mFaceDet = new FaceDet(landMarkPath, classifierPath);
+        mFaceDet.setBoxSource(FaceDet.BOX_SOURCE_CASCADE);
+    }
+
+
+
+    @Override
+    public String getName() {
+        return "cascade";
+    }
+
+
+
+    @Override
+    public List<VisionDetRet> detect(@NonNull Mat gray, @Nullable Rect prior) {
+        return mFaceDet.detect(gray, prior);
+    }
+
+
+
+    @Override
+    public void release() {
+        mFaceDet.release();
+    }
+}
@@ -0,0 +1,28 @@
+package mango.whale.detector;
+
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+import mango.whale.dlib.VisionDetRet;
+
+/**
+ * A way of finding faces on a gray frame, the landmarks of the faces are always fitted
+ * by the dlib shape predictor, the backends differ in how they find the face boxes
+ * a backend is used by one thread at a time
+ */
+public interface FaceDetectorBackend {
+    String getName();
+
+    /*
+        the faces and their landmarks on a gray frame, prior is the face box of the previous frame if it is known
+        (backends that cannot make use of it search the whole frame)
+    */
+    List<VisionDetRet> detect(@NonNull Mat gray, @Nullable Rect prior);
+
+    void release();
+}
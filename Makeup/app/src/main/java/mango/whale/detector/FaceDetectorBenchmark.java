@@ -0,0 +1,151 @@
+package mango.whale.detector;
+
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import mango.whale.dlib.VisionDetRet;
+
+/**
+ * Startup micro-benchmark picking the face detector backend for this device
+ * every backend detects the faces of a sample frame a few times (after warm-up runs), it is accurate
+ * if its best face box overlaps the annotated face box of the sample by at least minOverlap
+ * (intersection over union), the fastest accurate backend is selected
+ * the sample may be given at several scales (e.g. every detection scale the backend will run at), the backend
+ * then has to be accurate at all of them, and is timed on the first
+ * different devices are fastest on different backends (e.g. depending on their SIMD support)
+ */
+public class FaceDetectorBenchmark {
+    private final float mMinOverlap;
+    private final int mWarmUpNum;
+    private final int mRunNum;
+    private final List<Result> mResults = new ArrayList<>();
+
+
+
+    public static final class Result {
+        public final FaceDetectorBackend backend;
+        // mean detection time in milliseconds
+        public final float time;
+        // intersection over union of the best face box and the annotated one (the worst over the samples)
+        public final float overlap;
+        public final boolean accurate;
+
+        Result(FaceDetectorBackend backend, float time, float overlap, boolean accurate) {
+            this.backend = backend;
+            this.time = time;
+            this.overlap = overlap;
+            this.accurate = accurate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %.1f ms, overlap %.2f%s", backend.getName(), time, overlap,
+                    accurate ? "" : " (inaccurate)");
+        }
+    }
+
+
+
+    public FaceDetectorBenchmark(float minOverlap, int warmUpNum, int runNum) {
+        mMinOverlap = minOverlap;
+        mWarmUpNum = warmUpNum;
+        mRunNum = runNum;
+    }
+
+
+
+    /*
+        benchmark the backends on a gray sample frame with one annotated face, returns the fastest accurate backend
+        or null if none is accurate, a backend that fails counts as inaccurate
+    */
+    @Nullable
+    @WorkerThread
+    public FaceDetectorBackend select(List<FaceDetectorBackend> backends, Mat sample, Rect face) {
+        return select(backends, new Mat[]{sample}, new Rect[]{face});
+    }
+
+
+
+    /*
+        benchmark the backends on the same sample frame at several scales, faces[i] is the annotated face of samples[i]
+    */
+    @Nullable
+    @WorkerThread
+    public FaceDetectorBackend select(List<FaceDetectorBackend> backends, Mat[] samples, Rect[] faces) {
+        mResults.clear();
+        Result best = null;
+        for (FaceDetectorBackend backend : backends) {
+            Result result;
+            try {
+                result = run(backend, samples, faces);
+            }
+            catch (RuntimeException e) {
+                result = new Result(backend, Float.MAX_VALUE, 0, false);
+            }
+            mResults.add(result);
+            if (result.accurate && (best == null || result.time < best.time)) {
+                best = result;
+            }
+        }
+        return best == null ? null : best.backend;
+    }
+
+
+
+    private Result run(FaceDetectorBackend backend, Mat[] samples, Rect[] faces) {
+        for (int i = 0; i < mWarmUpNum; ++i) {
+            backend.detect(samples[0], null);
+        }
+        float overlap = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < mRunNum; ++i) {
+            overlap = Math.max(overlap, bestOverlap(faces[0], backend.detect(samples[0], null)));
+        }
+        float time = (System.nanoTime() - start) / 1e6f / Math.max(mRunNum, 1);
+        for (int i = 1; i < samples.length; ++i) {
+            overlap = Math.min(overlap, bestOverlap(faces[i], backend.detect(samples[i], null)));
+        }
+        return new Result(backend, time, overlap, overlap >= mMinOverlap);
+    }
+
+
+
+    private static float bestOverlap(Rect face, List<VisionDetRet> detections) {
+        float overlap = 0;
+        for (VisionDetRet detection : detections) {
+            overlap = Math.max(overlap, overlap(face, detection));
+        }
+        return overlap;
+    }
+
+
+
+    private static float overlap(Rect face, VisionDetRet detection) {
+        int left = Math.max(face.left, detection.getLeft());
+        int top = Math.max(face.top, detection.getTop());
+        int right = Math.min(face.right, detection.getRight());
+        int bottom = Math.min(face.bottom, detection.getBottom());
+        if (left >= right || top >= bottom) {
+            return 0;
+        }
+        float intersection = (float) (right - left) * (bottom - top);
+        float union = (float) face.width() * face.height()
+                + (float) (detection.getRight() - detection.getLeft()) * (detection.getBottom() - detection.getTop())
+                - intersection;
+        return intersection / union;
+    }
+
+
+
+    // the results of the last select(), in the order of the backends
+    public List<Result> getResults() {
+        return mResults;
+    }
+}
@@ -0,0 +1,48 @@
+package mango.whale.detector;
+
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+import mango.whale.dlib.FaceDet;
+import mango.whale.dlib.VisionDetRet;
+
+/**
+ * dlib's HOG frontal face detector (all faces), searching around the prior first
+ * it only finds faces of about 80 pixels and more, so it needs a larger detection proxy than the cascade
+ */
+public class HogFaceDetector implements FaceDetectorBackend {
+    private final FaceDet mFaceDet;
+
+
+
+    public HogFaceDetector(String landMarkPath, String classifierPath) {
+        mFaceDet = new FaceDet(landMarkPath, classifierPath);
+        mFaceDet.setBoxSource(FaceDet.BOX_SOURCE_HOG);
+    }
+
+
+
+    @Override
+    public String getName() {
+        return "hog";
+    }
+
+
+
+    @Override
+    public List<VisionDetRet> detect(@NonNull Mat gray, @Nullable Rect prior) {
+        return mFaceDet.detect(gray, prior);
+    }
+
+
+
+    @Override
+    public void release() {
+        mFaceDet.release();
+    }
+}
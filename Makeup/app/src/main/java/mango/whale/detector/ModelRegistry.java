@@ -0,0 +1,199 @@
+package mango.whale.detector;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import mango.whale.dlib.Constants;
+import mango.whale.dlib.FaceDet;
+
+/**
+ * Process-wide registry of the loaded models (face detectors and the landmark model they share)
+ * every model is loaded once, by name, on a background thread, and kept for the lifetime of the process,
+ * so recreating an activity or switching screens does not parse the models again
+ * callers get a Model, i.e. a Future, and may be called back once it is ready
+ * the FaceDet loaded by warmUp() keeps the ~100 MB landmark model in native memory, where every other
+ * detector shares it (see loadShapePredictor() in detector.h)
+ */
+public class ModelRegistry {
+    private static final String TAG = "mango.whale.detector.ModelRegistry";
+    public static final String FACE_DET = "faceDet";
+
+    private static ModelRegistry sInstance;
+
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "model loader");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    private final Map<String, Model<?>> mModels = new HashMap<>();
+
+
+
+    public interface Callback<T> {
+        void onReady(T model);
+
+        void onError(Exception e);
+    }
+
+
+
+    /*
+        a model being loaded or loaded, get() waits for it
+    */
+    public static final class Model<T> extends FutureTask<T> {
+        private final String mName;
+        private final List<Runnable> mListeners = new ArrayList<>();
+        private boolean mDone = false;
+
+        Model(String name, Callable<T> loader) {
+            super(loader);
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /*
+            call back once the model is loaded (right away if it already is), on the handler's thread
+            or on the loader thread if handler is null
+        */
+        public void whenReady(final Callback<T> callback, @Nullable final Handler handler) {
+            final Runnable notify = new Runnable() {
+                @Override
+                public void run() {
+                    T model;
+                    try {
+                        model = get();
+                    }
+                    catch (ExecutionException e) {
+                        callback.onError(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                        return;
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        callback.onError(e);
+                        return;
+                    }
+                    callback.onReady(model);
+                }
+            };
+            Runnable listener = new Runnable() {
+                @Override
+                public void run() {
+                    if (handler == null) {
+                        notify.run();
+                    }
+                    else {
+                        handler.post(notify);
+                    }
+                }
+            };
+            synchronized (this) {
+                if (!mDone) {
+                    mListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        @Override
+        protected void done() {
+            List<Runnable> listeners;
+            synchronized (this) {
+                mDone = true;
+                listeners = new ArrayList<>(mListeners);
+                mListeners.clear();
+            }
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+
+
+
+    public static synchronized ModelRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new ModelRegistry();
+        }
+        return sInstance;
+    }
+
+
+
+    /*
+        the model of this name, loaded by loader on the loader thread the first time it is asked for
+        (later calls get the same model, whatever their loader)
+    */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> Model<T> load(final String name, Callable<T> loader) {
+        Model<T> model = (Model<T>) mModels.get(name);
+        if (model == null) {
+            model = new Model<>(name, loader);
+            mModels.put(name, model);
+            final long start = System.nanoTime();
+            model.whenReady(new Callback<T>() {
+                @Override
+                public void onReady(T loaded) {
+                    Log.d(TAG, "loaded " + name + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    Log.e(TAG, "fail to load " + name + ": " + e.getMessage());
+                }
+            }, null);
+            mLoader.execute(model);
+        }
+        return model;
+    }
+
+
+
+    /*
+        the FaceDet with the landmark model and the cascade classifier of Constants,
+        shared by all its users (its methods are synchronized)
+    */
+    public Model<FaceDet> getFaceDet() {
+        return load(FACE_DET, new Callable<FaceDet>() {
+            @Override
+            public FaceDet call() {
+                return new FaceDet(Constants.getFaceShapeModelPath(), Constants.getClassifierPath());
+            }
+        });
+    }
+
+
+
+    /*
+        start loading the models every screen needs, e.g. when the application starts
+    */
+    public void warmUp() {
+        getFaceDet();
+    }
+
+
+
+    public synchronized boolean isLoaded(String name) {
+        Model<?> model = mModels.get(name);
+        return model != null && model.isDone();
+    }
+}
@@ -0,0 +1,106 @@
+package mango.whale.detector;
+
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+import mango.whale.dlib.FaceDet;
+import mango.whale.dlib.VisionDetRet;
+
+/**
+ * OpenCV DNN face detector: the ResNet-10 SSD (Caffe, 300x300 input) finds the face boxes,
+ * the dlib shape predictor fits their landmarks
+ * the network sees the whole frame at its input size, so the prior is not used
+ */
+public class SsdFaceDetector implements FaceDetectorBackend {
+    private static final Size INPUT_SIZE = new Size(300, 300);
+    // mean BGR of the training images of the network
+    private static final Scalar INPUT_MEAN = new Scalar(104, 177, 123);
+    // the output holds one row of image id, label, confidence, left, top, right, bottom per detection
+    private static final int OUTPUT_COLS = 7;
+    private static final int MAX_FACE_NUM = 8;
+
+    private final Net mNet;
+    private final FaceDet mFaceDet;
+    private final float mMinConfidence;
+    private final Mat mBGR = new Mat();
+    private float[] mOutput = new float[0];
+    private final int[] mBoxes = new int[4 * MAX_FACE_NUM];
+
+
+
+    /*
+        protoPath and modelPath are the Caffe files of the network, faces below minConfidence are ignored
+    */
+    public SsdFaceDetector(String protoPath, String modelPath, String landMarkPath, String classifierPath,
+                           float minConfidence) {
+        mNet = Dnn.readNetFromCaffe(protoPath, modelPath);
+        mFaceDet = new FaceDet(landMarkPath, classifierPath);
+        mMinConfidence = minConfidence;
+    }
+
+
+
+    @Override
+    public String getName() {
+        return "ssd";
+    }
+
+
+
+    @Override
+    public List<VisionDetRet> detect(@NonNull Mat gray, @Nullable Rect prior) {
+        // the network is trained on color images, the gray frame is given to it on all three channels
+        Imgproc.cvtColor(gray, mBGR, Imgproc.COLOR_GRAY2BGR);
+        Mat blob = Dnn.blobFromImage(mBGR, 1.0, INPUT_SIZE, INPUT_MEAN, false, false);
+        mNet.setInput(blob);
+        Mat output = mNet.forward();
+        int rowNum = (int) (output.total() / OUTPUT_COLS);
+        if (mOutput.length < rowNum * OUTPUT_COLS) {
+            mOutput = new float[rowNum * OUTPUT_COLS];
+        }
+        Mat rows = output.reshape(1, rowNum);
+        rows.get(0, 0, mOutput);
+        rows.release();
+        output.release();
+        blob.release();
+
+        int boxNum = 0;
+        for (int i = 0; i < rowNum && boxNum < MAX_FACE_NUM; ++i) {
+            int row = i * OUTPUT_COLS;
+            if (mOutput[row + 2] < mMinConfidence) {
+                continue;
+            }
+            int left = Math.max(Math.round(mOutput[row + 3] * gray.cols()), 0);
+            int top = Math.max(Math.round(mOutput[row + 4] * gray.rows()), 0);
+            int right = Math.min(Math.round(mOutput[row + 5] * gray.cols()), gray.cols());
+            int bottom = Math.min(Math.round(mOutput[row + 6] * gray.rows()), gray.rows());
+            if (left >= right || top >= bottom) {
+                continue;
+            }
+            mBoxes[4*boxNum] = left;
+            mBoxes[4*boxNum + 1] = top;
+            mBoxes[4*boxNum + 2] = right;
+            mBoxes[4*boxNum + 3] = bottom;
+            ++boxNum;
+        }
+        return mFaceDet.landmarks(gray, mBoxes, boxNum);
+    }
+
+
+
+    @Override
+    public void release() {
+        mFaceDet.release();
+        mBGR.release();
+    }
+}
@@ -34,4 +34,17 @@ public final class Constants {
         Log.d("DEBUG", sdcard.getAbsolutePath());
         return sdcard.getAbsolutePath() + "/Download/koestinger_cascade_aflw_lbp.xml";
     }
+
+
+    // the Caffe network of the SSD face detector backend
+    public static String getSsdProtoPath() {
+        File sdcard = Environment.getExternalStorageDirectory();
+        return sdcard.getAbsolutePath() + "/Download/deploy.prototxt";
+    }
+
+
+    public static String getSsdModelPath() {
+        File sdcard = Environment.getExternalStorageDirectory();
+        return sdcard.getAbsolutePath() + "/Download/res10_300x300_ssd_iter_140000.caffemodel";
+    }
 }
@@ -1,6 +1,7 @@
 package mango.whale.dlib;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.support.annotation.Keep;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -9,6 +10,10 @@ import android.util.Log;
 
 import org.opencv.core.Mat;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -19,11 +24,32 @@ import java.util.List;
 public class FaceDet {
     private static final String TAG = "dlib";
 
+    /*
+        layout of a face in the result buffer of detect(Mat, IntBuffer), in ints (see DET_RESULT_* in jni_primitives.h)
+        left, top, right, bottom, score (Float.floatToIntBits), landmark number, then x0, y0, x1, y1, ...
+    */
+    public static final int RESULT_LEFT = 0;
+    public static final int RESULT_TOP = 1;
+    public static final int RESULT_RIGHT = 2;
+    public static final int RESULT_BOTTOM = 3;
+    public static final int RESULT_SCORE = 4;
+    public static final int RESULT_LANDMARK_NUM = 5;
+    public static final int RESULT_LANDMARKS = 6;
+    public static final int RESULT_MAX_LANDMARK_NUM = 68;
+    public static final int RESULT_STRIDE = RESULT_LANDMARKS + 2 * RESULT_MAX_LANDMARK_NUM;
+    private static final int DEFAULT_MAX_FACE_NUM = 8;
+
+    // where detect() gets the face boxes from (see setBoxSource()), the landmarks always come from the shape predictor
+    public static final int BOX_SOURCE_CASCADE = 0;
+    public static final int BOX_SOURCE_HOG = 1;
+
     // accessed by native methods
     @SuppressWarnings("unused")
     private long mNativeFaceDetContext;
     private String mLandMarkPath = "";
     private String mClassifierPath = "";
+    // result buffer of the object-based detect(Mat)
+    private IntBuffer mResultBuffer;
 
     static {
         try {
@@ -67,8 +93,103 @@ public class FaceDet {
     @Nullable
     @WorkerThread
     public List<VisionDetRet> detect(@NonNull Mat BGRMat) {
-        VisionDetRet[] detRets = jniGRAYMatDetect(BGRMat.getNativeObjAddr());
-        return Arrays.asList(detRets);
+        return detect(BGRMat, (Rect) null);
+    }
+
+    /*
+        thin adapter around detect(Mat, Rect, IntBuffer) returning VisionDetRet objects
+    */
+    @Nullable
+    @WorkerThread
+    public synchronized List<VisionDetRet> detect(@NonNull Mat BGRMat, @Nullable Rect prior) {
+        if (mResultBuffer == null) {
+            mResultBuffer = allocateResultBuffer(DEFAULT_MAX_FACE_NUM);
+        }
+        return toDetRets(detect(BGRMat, prior, mResultBuffer));
+    }
+
+    /*
+        thin adapter around landmarks(Mat, int[], int, IntBuffer) returning VisionDetRet objects
+    */
+    @WorkerThread
+    public synchronized List<VisionDetRet> landmarks(@NonNull Mat grayMat, @NonNull int[] boxes, int boxNum) {
+        if (mResultBuffer == null) {
+            mResultBuffer = allocateResultBuffer(DEFAULT_MAX_FACE_NUM);
+        }
+        return toDetRets(landmarks(grayMat, boxes, boxNum, mResultBuffer));
+    }
+
+    private List<VisionDetRet> toDetRets(int faceNum) {
+        List<VisionDetRet> detRets = new ArrayList<>(faceNum);
+        for (int i = 0; i < faceNum; ++i) {
+            int face = i * RESULT_STRIDE;
+            VisionDetRet detRet = new VisionDetRet("face",
+                    Float.intBitsToFloat(mResultBuffer.get(face + RESULT_SCORE)),
+                    mResultBuffer.get(face + RESULT_LEFT), mResultBuffer.get(face + RESULT_TOP),
+                    mResultBuffer.get(face + RESULT_RIGHT), mResultBuffer.get(face + RESULT_BOTTOM));
+            int landmarkNum = mResultBuffer.get(face + RESULT_LANDMARK_NUM);
+            for (int j = 0; j < landmarkNum; ++j) {
+                detRet.addLandmark(mResultBuffer.get(face + RESULT_LANDMARKS + 2*j),
+                        mResultBuffer.get(face + RESULT_LANDMARKS + 2*j + 1));
+            }
+            detRets.add(detRet);
+        }
+        return detRets;
+    }
+
+    @WorkerThread
+    public int detect(@NonNull Mat grayMat, @NonNull IntBuffer results) {
+        return detect(grayMat, null, results);
+    }
+
+    /*
+        detect the faces on a gray Mat and write them into a direct buffer (see RESULT_*) from index 0,
+        without creating any object, returns the number of faces written,
+        at most results.capacity() / RESULT_STRIDE (see allocateResultBuffer())
+        prior is the face box of the previous frame, if it is known only a window around it is searched
+        for faces of about its size, the whole frame is searched if none is found there
+    */
+    @WorkerThread
+    public int detect(@NonNull Mat grayMat, @Nullable Rect prior, @NonNull IntBuffer results) {
+        if (!results.isDirect()) {
+            throw new IllegalArgumentException("the result buffer is not direct");
+        }
+        if (prior == null || prior.isEmpty()) {
+            return jniGRAYMatDetectInto(grayMat.getNativeObjAddr(), 0, 0, 0, 0, results);
+        }
+        return jniGRAYMatDetectInto(grayMat.getNativeObjAddr(), prior.left, prior.top, prior.right, prior.bottom,
+                results);
+    }
+
+    /*
+        fit the landmarks of face boxes found elsewhere (packed as left, top, right, bottom) and write them
+        into a direct buffer like detect(Mat, Rect, IntBuffer), returns the number of faces written
+    */
+    @WorkerThread
+    public int landmarks(@NonNull Mat grayMat, @NonNull int[] boxes, int boxNum, @NonNull IntBuffer results) {
+        if (!results.isDirect()) {
+            throw new IllegalArgumentException("the result buffer is not direct");
+        }
+        if (boxNum < 0 || boxes.length / 4 < boxNum) {
+            throw new IllegalArgumentException(boxNum + " boxes do not fit into " + boxes.length + " ints");
+        }
+        return jniGRAYMatLandmarksInto(grayMat.getNativeObjAddr(), boxes, boxNum, results);
+    }
+
+    public void setBoxSource(int source) {
+        jniSetBoxSource(source);
+    }
+
+    // number of detections that found a face around their prior, without searching the whole frame
+    public long getPriorHitNum() {
+        return jniGetPriorHitNum();
+    }
+
+    /*
+        a direct result buffer in native byte order for up to maxFaceNum faces, meant to be reused
+    */
+    public static IntBuffer allocateResultBuffer(int maxFaceNum) {
+        return ByteBuffer.allocateDirect(maxFaceNum * RESULT_STRIDE * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
     }
 
 
@@ -97,6 +218,20 @@ public class FaceDet {
     @Keep
     private synchronized native VisionDetRet[] jniGRAYMatDetect(long mNativeFaceDetContext);
 
+    @Keep
+    private synchronized native int jniGRAYMatDetectInto(long addrGRAYMat, int priorLeft, int priorTop,
+                                                         int priorRight, int priorBottom, IntBuffer results);
+
+    @Keep
+    private synchronized native int jniGRAYMatLandmarksInto(long addrGRAYMat, int[] boxes, int boxNum,
+                                                            IntBuffer results);
+
+    @Keep
+    private synchronized native void jniSetBoxSource(int source);
+
+    @Keep
+    private synchronized native long jniGetPriorHitNum();
+
     @Keep
     private synchronized native VisionDetRet[] jniGetLandmarks(long mNativeFaceDetContext);
 
@@ -0,0 +1,254 @@
+package mango.whale.dlib;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of face detectors for detecting several images or frames at the same time
+ * a FaceDet only runs one detection at a time (its native context keeps the results of the last one),
+ * so the pool hands out one FaceDet per thread, the native contexts share one loaded landmark model
+ * detectors are created lazily, up to maxSize, a lease waits while all of them are in use
+ * the leases, the time spent waiting for a detector (contention) and holding it are counted
+ */
+public class FaceDetPool {
+    private final String mLandMarkPath;
+    private final String mClassifierPath;
+    private final int mMaxSize;
+    private final ArrayDeque<FaceDet> mIdle = new ArrayDeque<>();
+    private final List<FaceDet> mDetectors = new ArrayList<>();
+    // lease start time of every leased detector, in nanoseconds
+    private final IdentityHashMap<FaceDet, Long> mLeased = new IdentityHashMap<>();
+    // detectors being created outside of the lock
+    private int mCreatingNum = 0;
+    private boolean mClosed = false;
+    private long mLeaseNum = 0;
+    private long mWaitNum = 0;
+    private long mTimeoutNum = 0;
+    private long mWaitTime = 0;
+    private long mHoldTime = 0;
+    private int mMaxLeasedNum = 0;
+
+
+
+    public FaceDetPool(String landMarkPath, String classifierPath, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("pool size " + maxSize + " is not positive");
+        }
+        mLandMarkPath = landMarkPath;
+        mClassifierPath = classifierPath;
+        mMaxSize = maxSize;
+    }
+
+
+
+    /*
+        one detector per available core, at least one
+    */
+    public static int defaultSize() {
+        return Math.max(Runtime.getRuntime().availableProcessors(), 1);
+    }
+
+
+
+    /*
+        wait for a detector, creating one if fewer than maxSize exist
+    */
+    @WorkerThread
+    public FaceDet lease() throws InterruptedException {
+        FaceDet detector = lease(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (detector == null) {
+            throw new IllegalStateException("the pool is closed");
+        }
+        return detector;
+    }
+
+
+
+    /*
+        wait at most timeout for a detector, returns null on timeout or if the pool is closed
+    */
+    @Nullable
+    @WorkerThread
+    public FaceDet lease(long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean create = false;
+        FaceDet detector = null;
+        synchronized (this) {
+            long remaining = unit.toNanos(timeout);
+            boolean waited = false;
+            while (!mClosed && mIdle.isEmpty() && mDetectors.size() + mCreatingNum >= mMaxSize) {
+                if (remaining <= 0) {
+                    ++mTimeoutNum;
+                    mWaitTime += System.nanoTime() - start;
+                    return null;
+                }
+                waited = true;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = unit.toNanos(timeout) - (System.nanoTime() - start);
+            }
+            if (mClosed) {
+                return null;
+            }
+            if (waited) {
+                ++mWaitNum;
+            }
+            mWaitTime += System.nanoTime() - start;
+            detector = mIdle.pollFirst();
+            if (detector == null) {
+                // created outside of the lock, loading takes a while
+                create = true;
+                ++mCreatingNum;
+            }
+        }
+        if (create) {
+            try {
+                detector = new FaceDet(mLandMarkPath, mClassifierPath);
+            }
+            finally {
+                synchronized (this) {
+                    --mCreatingNum;
+                    if (detector != null) {
+                        mDetectors.add(detector);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+        synchronized (this) {
+            mLeased.put(detector, System.nanoTime());
+            ++mLeaseNum;
+            mMaxLeasedNum = Math.max(mMaxLeasedNum, mLeased.size());
+        }
+        return detector;
+    }
+
+
+
+    /*
+        give a leased detector back
+    */
+    public synchronized void release(FaceDet detector) {
+        Long start = mLeased.remove(detector);
+        if (start == null) {
+            throw new IllegalArgumentException("the detector is not leased from this pool");
+        }
+        mHoldTime += System.nanoTime() - start;
+        if (mClosed) {
+            detector.release();
+            mDetectors.remove(detector);
+        }
+        else {
+            mIdle.addLast(detector);
+        }
+        notifyAll();
+    }
+
+
+
+    /*
+        detect with a leased detector, see FaceDet.detect(Mat)
+    */
+    @WorkerThread
+    public List<VisionDetRet> detect(@NonNull Mat grayMat) throws InterruptedException {
+        FaceDet detector = lease();
+        try {
+            return detector.detect(grayMat);
+        }
+        finally {
+            release(detector);
+        }
+    }
+
+
+
+    /*
+        release the idle detectors, leased ones are released when they are given back
+    */
+    public synchronized void close() {
+        mClosed = true;
+        for (FaceDet detector : mIdle) {
+            detector.release();
+            mDetectors.remove(detector);
+        }
+        mIdle.clear();
+        notifyAll();
+    }
+
+
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+
+
+    // number of detectors created so far
+    public synchronized int getSize() {
+        return mDetectors.size();
+    }
+
+
+
+    public synchronized int getLeasedNum() {
+        return mLeased.size();
+    }
+
+
+
+    // most detectors leased at the same time
+    public synchronized int getMaxLeasedNum() {
+        return mMaxLeasedNum;
+    }
+
+
+
+    public synchronized long getLeaseNum() {
+        return mLeaseNum;
+    }
+
+
+
+    // leases that had to wait for a detector
+    public synchronized long getWaitNum() {
+        return mWaitNum;
+    }
+
+
+
+    public synchronized long getTimeoutNum() {
+        return mTimeoutNum;
+    }
+
+
+
+    // total time spent waiting for a detector in nanoseconds
+    public synchronized long getWaitTime() {
+        return mWaitTime;
+    }
+
+
+
+    // total time detectors were leased in nanoseconds
+    public synchronized long getHoldTime() {
+        return mHoldTime;
+    }
+
+
+
+    public synchronized String report() {
+        long leaseNum = Math.max(mLeaseNum, 1);
+        return String.format(Locale.US, "detectors: %d of %d, most leased: %d, leases: %d, waits: %d, timeouts: %d, "
+                        + "wait: %.1f ms/lease, hold: %.1f ms/lease", mDetectors.size(), mMaxSize, mMaxLeasedNum,
+                mLeaseNum, mWaitNum, mTimeoutNum, mWaitTime / 1e6f / leaseNum, mHoldTime / 1e6f / leaseNum);
+    }
+}
@@ -0,0 +1,59 @@
+package mango.whale.face;
+
+/**
+ * Canonical (mean) face shape in the 68-point landmark layout, in a unit face frame
+ * points 17..67 are dlib's mean face shape (the one dlib's get_face_chip_details() aligns to),
+ * the jaw (points 0..16) is not part of it and is approximated by an elliptic arc under the brows
+ */
+final class CanonicalFace {
+    static final int LANDMARK_NUM = 68;
+    private static final int JAW_POINT_NUM = 17;
+    private static final double JAW_CENTER_X = 0.49;
+    private static final double JAW_CENTER_Y = 0.2;
+    private static final double JAW_RADIUS_X = 0.52;
+    private static final double JAW_RADIUS_Y = 0.86;
+
+    private static final double[] MEAN_SHAPE_X = {
+            0.000213256, 0.0752622, 0.18113, 0.29077, 0.393397, 0.586856, 0.689483, 0.799124,
+            0.904991, 0.98004, 0.490127, 0.490127, 0.490127, 0.490127, 0.36688, 0.426036,
+            0.490127, 0.554217, 0.613373, 0.121737, 0.187122, 0.265825, 0.334606, 0.260918,
+            0.182743, 0.645647, 0.714428, 0.793132, 0.858516, 0.79751, 0.719335, 0.254149,
+            0.340985, 0.428858, 0.490127, 0.551395, 0.639268, 0.726104, 0.642159, 0.556721,
+            0.490127, 0.423532, 0.338094, 0.290379, 0.428096, 0.490127, 0.552157, 0.689874,
+            0.553364, 0.490127, 0.42689
+    };
+    private static final double[] MEAN_SHAPE_Y = {
+            0.106454, 0.038915, 0.0187482, 0.0344891, 0.0773906, 0.0773906, 0.0344891, 0.0187482,
+            0.038915, 0.106454, 0.203352, 0.307009, 0.409805, 0.515625, 0.587326, 0.609345,
+            0.628106, 0.609345, 0.587326, 0.216423, 0.178758, 0.179852, 0.231733, 0.245099,
+            0.244077, 0.231733, 0.179852, 0.178758, 0.216423, 0.244077, 0.245099, 0.780233,
+            0.745405, 0.727388, 0.742578, 0.727388, 0.745405, 0.780233, 0.864805, 0.902192,
+            0.909281, 0.902192, 0.864805, 0.784792, 0.778746, 0.785343, 0.778746, 0.784792,
+            0.824182, 0.831803, 0.824182
+    };
+
+    private CanonicalFace() {
+    }
+
+
+    static double getX(int index) {
+        if (index < JAW_POINT_NUM) {
+            return JAW_CENTER_X - JAW_RADIUS_X * Math.cos(jawAngle(index));
+        }
+        return MEAN_SHAPE_X[index - JAW_POINT_NUM];
+    }
+
+
+    static double getY(int index) {
+        if (index < JAW_POINT_NUM) {
+            return JAW_CENTER_Y + JAW_RADIUS_Y * Math.sin(jawAngle(index));
+        }
+        return MEAN_SHAPE_Y[index - JAW_POINT_NUM];
+    }
+
+
+    // the jaw runs from the right side of the face (in the image, point 0) over the chin to the left side
+    private static double jawAngle(int index) {
+        return Math.PI * index / (JAW_POINT_NUM - 1);
+    }
+}
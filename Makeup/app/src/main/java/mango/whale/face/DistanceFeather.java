@@ -0,0 +1,82 @@
+package mango.whale.face;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Feathering of a hard 0/255 mask based on a distance transform
+ * every pixel outside of the mask gets its (exact euclidean) distance to the mask, which is mapped
+ * to alpha with a lookup table, so the cost is linear in the number of pixels whatever the feather radius
+ * the profile of the table follows the Gaussian mode of Feature: opaque inside the mask and
+ * a Gaussian edge centered one kernel radius outside of it, as the blur, threshold, blur sequence produces
+ */
+final class DistanceFeather {
+    private static final int MAX_ALPHA_VAL = 255;
+    private static final int LUT_SIZE = 256;
+
+    private DistanceFeather() {
+    }
+
+
+
+    /*
+        feather a CV_8UC1 0/255 mask as Feature's Gaussian mode would with a kernel of size ksize
+    */
+    static Mat feather(Mat mask, Size ksize) {
+        int radius = ((int) ksize.width - 1) / 2;
+        // same sigma as openCV derives from the kernel size in GaussianBlur()
+        double sigma = 0.3 * (radius - 1) + 0.8;
+        // distances beyond twice the radius (plus a pixel) are fully transparent
+        double maxDistance = 2 * radius + 1;
+        double scale = (LUT_SIZE - 1) / maxDistance;
+
+        Mat outside = new Mat();
+        Mat distance = new Mat();
+        Mat featherMask = new Mat(mask.rows(), mask.cols(), CvType.CV_8UC1);
+        Imgproc.threshold(mask, outside, 0, MAX_ALPHA_VAL, Imgproc.THRESH_BINARY_INV);
+        Imgproc.distanceTransform(outside, distance, Imgproc.DIST_L2, Imgproc.DIST_MASK_PRECISE);
+        distance.convertTo(featherMask, CvType.CV_8U, scale);
+
+        Mat lut = buildLut(radius, sigma, scale);
+        Core.LUT(featherMask, lut, featherMask);
+
+        outside.release();
+        distance.release();
+        lut.release();
+        return featherMask;
+    }
+
+
+
+    /*
+        alpha for every quantized distance: the Gaussian edge, normalized to be opaque at distance 0
+    */
+    private static Mat buildLut(int radius, double sigma, double scale) {
+        byte[] table = new byte[LUT_SIZE];
+        double inside = gaussianCdf(radius / sigma);
+        for (int i = 0; i < LUT_SIZE; ++i) {
+            double distance = i / scale;
+            double alpha = gaussianCdf((radius - distance) / sigma) / inside;
+            table[i] = (byte) Math.round(Math.min(alpha, 1.0) * MAX_ALPHA_VAL);
+        }
+        // the last entry also holds every distance beyond maxDistance (convertTo() saturates), keep them transparent
+        table[LUT_SIZE-1] = 0;
+        Mat lut = new Mat(1, LUT_SIZE, CvType.CV_8UC1);
+        lut.put(0, 0, table);
+        return lut;
+    }
+
+
+
+    // cumulative distribution of the standard normal distribution, with Abramowitz and Stegun's erf approximation
+    private static double gaussianCdf(double x) {
+        double z = Math.abs(x) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * z);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741
+                + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-z * z);
+        return x >= 0 ? 0.5 * (1 + erf) : 0.5 * (1 - erf);
+    }
+}
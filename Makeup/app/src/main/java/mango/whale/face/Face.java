@@ -1,68 +1,135 @@
 package mango.whale.face;
 
 import android.graphics.Point;
-import android.util.Log;
+import android.graphics.Rect;
 
 import org.opencv.core.Mat;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Map;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
 /**
  * Created by You Lyu on 2018/8/6.
  * Implementations of Face class
+ * features are built lazily, the first time they are requested, and memoized afterwards,
+ * so the cost of a face only grows with the number of effects actually applied to it
+ * a Face can be reset() to the landmarks of the next frame, its Feature objects are reused then
  */
 @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
 public class Face {
-    private static final int JAW_RANGE_LOW = 0;
-    private static final int JAW_RANGE_UP = 17;
-    private static final int MOUTH_RANGE_LOW = 48;
-    private static final int MOUTH_RANGE_UP = 61;
-    private static final int NOSE_RANGE_LOW = 27;
-    private static final int NOSE_RANGE_UP = 35;
-    private static final int LEFT_EYE_RANGE_LOW = 42;
-    private static final int LEFT_EYE_RANGE_UP = 48;
-    private static final int RIGHT_EYE_RANGE_LOW = 36;
-    private static final int RIGHT_EYE_RANGE_UP = 42;
-    private static final int LEFT_BROW_RANGE_LOW = 22;
-    private static final int LEFT_BROW_RANGE_UP = 27;
-    private static final int RIGHT_BROW_RANGE_LOW = 17;
-    private static final int RIGHT_BROW_RANGE_UP = 22;
-    private Map<String, Feature> features = new HashMap<>();
+    private Mat imageRBG;
+    private ArrayList<Point> landmarkPoints;
+    private Map<FeatureRegion, Feature> features = new EnumMap<>(FeatureRegion.class);
+    // features built for the current landmarks, the others in features are left over from a previous reset()
+    private EnumSet<FeatureRegion> builtFeatures = EnumSet.noneOf(FeatureRegion.class);
+    private Feature.MaskSource maskSource = Feature.MaskSource.RASTER;
+    private Feature.FeatherMode featherMode = Feature.FeatherMode.GAUSSIAN;
 
     // constructor
-    @SuppressWarnings("SuspiciousSystemArraycopy")
-    public Face(Mat imageRBG, Mat imageHSV, ArrayList<Point> landmarkPoints) {
-        ArrayList<int[]> featureLandmarksRange = new ArrayList<>();
-        featureLandmarksRange.add(new int[]{JAW_RANGE_LOW, JAW_RANGE_UP});
-        featureLandmarksRange.add(new int[]{MOUTH_RANGE_LOW, MOUTH_RANGE_UP});
-        featureLandmarksRange.add(new int[]{NOSE_RANGE_LOW, NOSE_RANGE_UP});
-        featureLandmarksRange.add(new int[]{LEFT_EYE_RANGE_LOW, LEFT_EYE_RANGE_UP});
-        featureLandmarksRange.add(new int[]{RIGHT_EYE_RANGE_LOW, RIGHT_EYE_RANGE_UP});
-        featureLandmarksRange.add(new int[]{LEFT_BROW_RANGE_LOW, LEFT_BROW_RANGE_UP});
-        featureLandmarksRange.add(new int[]{RIGHT_BROW_RANGE_LOW, RIGHT_BROW_RANGE_UP});
-
-        ArrayList<String> featureNames = new ArrayList<>();
-        featureNames.add("jaw");
-        featureNames.add("mouth");
-        featureNames.add("nose");
-        featureNames.add("leftEye");
-        featureNames.add("rightEye");
-        featureNames.add("leftEyeBrow");
-        featureNames.add("rightEyeBrow");
-
-        // for each feature, get its landmark points and initiate a new Feature class
-        for (int i = 0; i < featureLandmarksRange.size(); ++i) {
-            int low = featureLandmarksRange.get(i)[0];
-            int up = featureLandmarksRange.get(i)[1];
-            ArrayList<Point> featureLandmarks = new ArrayList<>();
-            featureLandmarks.addAll(landmarkPoints.subList(low, up));
-            features.put(featureNames.get(i), new Feature(imageRBG, imageHSV, featureLandmarks));
-        }
+    public Face(Mat imageRBG, ArrayList<Point> landmarkPoints) {
+        reset(imageRBG, landmarkPoints);
+    }
+
+
+    /*
+        point the face at a new image and landmarks, features are rebuilt lazily as before
+        but into the existing Feature objects
+    */
+    public void reset(Mat imageRBG, ArrayList<Point> landmarkPoints) {
+        this.imageRBG = imageRBG;
+        this.landmarkPoints = landmarkPoints;
+        builtFeatures.clear();
+    }
+
+
+    /*
+        select where the masks of the features built from now on come from, see Feature.MaskSource
+    */
+    public void setMaskSource(Feature.MaskSource maskSource) {
+        this.maskSource = maskSource;
     }
 
 
+    /*
+        select how the masks of the features built from now on are feathered, see Feature.FeatherMode
+        (e.g. per image or per quality level, every face renders with its own mode)
+    */
+    public void setFeatherMode(Feature.FeatherMode featherMode) {
+        this.featherMode = featherMode;
+    }
+
+
+    /*
+        get a feature by name, e.g. "mouth", the Feature (with its submats and mask)
+        is only built the first time it is requested
+    */
     public Feature getFeature(String featureName) {
-        return features.get(featureName);
+        FeatureRegion region = FeatureRegion.fromName(featureName);
+        if (region == null) {
+            return null;
+        }
+        return getFeature(region);
+    }
+
+
+    public Feature getFeature(FeatureRegion region) {
+        Feature feature = features.get(region);
+        if (feature == null) {
+            ArrayList<Point> featureLandmarks = new ArrayList<>(landmarkPoints.subList(region.getLow(), region.getUp()));
+            feature = new Feature(imageRBG, featureLandmarks, region, maskSource, featherMode);
+            features.put(region, feature);
+            builtFeatures.add(region);
+        }
+        else if (!builtFeatures.contains(region)) {
+            feature.reset(imageRBG, landmarkPoints.subList(region.getLow(), region.getUp()), region, maskSource,
+                    featherMode);
+            builtFeatures.add(region);
+        }
+        return feature;
+    }
+
+
+    /*
+        release the Mats of all features, e.g. when the buffers of the frame the face belongs to are freed
+    */
+    public void release() {
+        for (Feature feature : features.values()) {
+            feature.release();
+        }
+        features.clear();
+        builtFeatures.clear();
+    }
+
+
+    /*
+        bounding box of a feature's landmarks, computed from the geometry only
+        (no submats, hull or mask are built), null if there is no such feature
+    */
+    public Rect getFeatureBounds(String featureName) {
+        FeatureRegion region = FeatureRegion.fromName(featureName);
+        if (region == null) {
+            return null;
+        }
+        return getFeatureBounds(region);
+    }
+
+
+    public Rect getFeatureBounds(FeatureRegion region) {
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for (int i = region.getLow(); i < region.getUp(); ++i) {
+            Point point = landmarkPoints.get(i);
+            left = min(left, point.x);
+            top = min(top, point.y);
+            right = max(right, point.x);
+            bottom = max(bottom, point.y);
+        }
+        return new Rect(left, top, right, bottom);
     }
 }
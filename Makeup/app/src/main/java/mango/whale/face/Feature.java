@@ -1,21 +1,19 @@
 package mango.whale.face;
 
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfInt;
-import org.opencv.core.MatOfPoint;
 import org.opencv.core.Size;
 import org.opencv.core.CvType;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.core.Scalar;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
@@ -29,37 +27,164 @@ import static java.lang.Math.sqrt;
 @SuppressWarnings("ALL")
 public class Feature {
     private static final String TAG = "Feature DEBUG";
-    private static final int GAUSSIAN_KERNEL_RATE = 15;
+    // log the feature box of every feature built (it is logged per frame in the live stream)
+    private static final boolean DEBUG = false;
+    static final int GAUSSIAN_KERNEL_RATE = 15;
     private static final int RED_CHANNEL = 1;
     private static final int BRIGHT_CHANNEL = 1;
     private static final int CHANNEL_NUM = 3;
     private static final int MAX_COLOR_VAL = 255;
     private static final int MAX_BRIGHT_VAL = 255;
+    private static final int MAX_ALPHA_VAL = 255;
+    // one saturation kernel per thread, so its buffers are reused from frame to frame
+    private static final ThreadLocal<SaturationKernel> saturationKernel = new ThreadLocal<SaturationKernel>() {
+        @Override
+        protected SaturationKernel initialValue() {
+            return new SaturationKernel();
+        }
+    };
+    // one rasterizer per thread as well, for the same reason
+    private static final ThreadLocal<ScanlineRasterizer> scanlineRasterizer = new ThreadLocal<ScanlineRasterizer>() {
+        @Override
+        protected ScanlineRasterizer initialValue() {
+            return new ScanlineRasterizer();
+        }
+    };
+    // feathered masks shared by all features, keyed by the feature geometry
+    private static final FeatureMaskCache maskCache = new FeatureMaskCache();
+    // Mats (and Mat headers) allocated by all features, it stays constant while the geometry of the faces does
+    private static final AtomicLong matAllocationNum = new AtomicLong();
+    private MaskSource maskSource = MaskSource.RASTER;
+    private FeatherMode featherMode = FeatherMode.GAUSSIAN;
     private ArrayList<Point> featureLandmarks;
+    private FeatureRegion region;
     private Mat imageRGB;
-    private Mat imageHSV;
     public Mat featureRGB;
     public Mat featureHSV;
-    public Mat mask;
     public Mat featureRelativeMask;
-    private Map<String, Integer> featureParams;
-    private Size ksize;
+    // backing memory of featureHSV, it only grows, featureHSV is a view of the box size
+    private Mat hsvBuffer;
+    private boolean hsvConverted = false;
+    // the box featureRGB was taken from, it is kept while the box and the image do not change
+    private Mat featureImage;
+    private final Rect featureBox = new Rect();
+    // the rasterized mask (a header on the cached pixels) and its key, kept while the geometry does not change
+    private Mat rasterMask;
+    private FeatureMaskCache.Key rasterKey = new FeatureMaskCache.Key();
+    private FeatureMaskCache.Key lookupKey = new FeatureMaskCache.Key();
+    // the warped template mask, reused from frame to frame
+    private Mat templateMask;
+    // scratch arrays for the mask geometry
+    private int[] relativePoints = new int[0];
+    private final int[] maskParams = new int[5];
+    // the feature box, see getFeatureParams()
+    private int top;
+    private int bottom;
+    private int left;
+    private int right;
+    private int area;
+    private int adjustment;
+    private int boundaryYLow;
+    private int boundaryYUp;
+    private int boundaryXLow;
+    private int boundaryXUp;
+    private final Size ksize = new Size();
+    private long convertedBytes = 0;
+
+
+
+    /*
+        where the feathered mask of a feature comes from
+        RASTER:   the hull (or the contours) of the landmarks is rasterized and blurred in the frame (cached by geometry)
+        TEMPLATE: the region's mask, precomputed once in the canonical face frame, is warped into the frame
+    */
+    public enum MaskSource {
+        RASTER,
+        TEMPLATE
+    }
 
 
 
-    public Feature(Mat RGB, Mat HSV, ArrayList<Point> landmarks) {
+    /*
+        how a rasterized mask gets its soft edge
+        GAUSSIAN: blur, threshold, blur, the cost grows with the kernel, i.e. with the size of the feature
+        DISTANCE: distance transform and a lookup table with the same profile, the cost is linear in the box size
+    */
+    public enum FeatherMode {
+        GAUSSIAN,
+        DISTANCE
+    }
+
+
+
+    public Feature(Mat RGB, ArrayList<Point> landmarks) {
+        this(RGB, landmarks, null, MaskSource.RASTER, FeatherMode.GAUSSIAN);
+    }
+
+
+
+    // region is the facial region the landmarks belong to, it is needed by MaskSource.TEMPLATE
+    public Feature(Mat RGB, ArrayList<Point> landmarks, FeatureRegion region, MaskSource maskSource,
+                   FeatherMode featherMode) {
+        featureLandmarks = new ArrayList<>(landmarks.size());
+        reset(RGB, landmarks, region, maskSource, featherMode);
+    }
+
+
+
+    /*
+        rebuild the feature for new landmarks (e.g. of the next frame), reusing this object and its buffers
+        the landmarks are copied, the box view and the mask of the previous frame are kept if the geometry
+        did not change and released right away otherwise (instead of by the finalizer)
+    */
+    public void reset(Mat RGB, List<Point> landmarks, FeatureRegion region, MaskSource maskSource,
+                      FeatherMode featherMode) {
         imageRGB = RGB;
-        imageHSV = HSV;
-        featureLandmarks = landmarks;
-        featureParams = getFeatureParams();
+        this.maskSource = maskSource;
+        this.featherMode = featherMode;
+        featureLandmarks.clear();
+        for (int i = 0; i < landmarks.size(); ++i) {
+            featureLandmarks.add(landmarks.get(i));
+        }
+        this.region = region;
+        hsvConverted = false;
+        convertedBytes = 0;
+        getFeatureParams();
         getFeature();
         getFeatureRelativeMask();
     }
 
 
 
-    private Map<String, Integer> getFeatureParams() {
-        Map<String, Integer> params = new HashMap<>();
+    /*
+        release the Mats of this feature, e.g. when the buffers of the frame it belongs to are freed
+    */
+    public void release() {
+        release(featureRGB);
+        release(featureHSV);
+        release(hsvBuffer);
+        release(rasterMask);
+        release(templateMask);
+        featureRGB = null;
+        featureHSV = null;
+        hsvBuffer = null;
+        rasterMask = null;
+        templateMask = null;
+        featureRelativeMask = null;
+        featureImage = null;
+    }
+
+
+
+    private static void release(Mat mat) {
+        if (mat != null) {
+            mat.release();
+        }
+    }
+
+
+
+    private void getFeatureParams() {
         int xMax = 0;
         int yMax = 0;
         int xMin = imageRGB.rows();
@@ -82,40 +207,48 @@ public class Feature {
             }
         }
 
-        params.put("top", yMin);
-        params.put("bottom", yMax);
-        params.put("left", xMin);
-        params.put("right", xMax);
-        params.put("area", (yMax-yMin)*(xMax-xMin)*3);
-        params.put("adjustment", (int)(sqrt(params.get("area")/3)/20));
-        params.put("boundaryYLow", max(params.get("top")-params.get("adjustment"), 0));
-        params.put("boundaryYUp", min(params.get("bottom")+params.get("adjustment"), imageRGB.rows()));
-        params.put("boundaryXLow", max(params.get("left")-params.get("adjustment"), 0));
-        params.put("boundaryXUp", min(params.get("right")+params.get("adjustment"), imageRGB.cols()));
-        Log.d("DEBUG", "top: " + params.get("top"));
-        Log.d("DEBUG", "bottom: " + params.get("bottom"));
-        Log.d("DEBUG", "left: " + params.get("left"));
-        Log.d("DEBUG", "right: " + params.get("right"));
-        Log.d("DEBUG", "area: " + params.get("area"));
-        Log.d("DEBUG", "adjustment: " + params.get("adjustment"));
-        Log.d("DEBUG", "boundaryYLow: " + params.get("boundaryYLow"));
-        Log.d("DEBUG", "boundaryYUp: " + params.get("boundaryYUp"));
-        Log.d("DEBUG", "boundaryXLow: " + params.get("boundaryXLow"));
-        Log.d("DEBUG", "boundaryXUp: " + params.get("boundaryXUp"));
-
-
-        return params;
+        // plain fields instead of a map of boxed values, so a new frame allocates nothing here
+        top = yMin;
+        bottom = yMax;
+        left = xMin;
+        right = xMax;
+        area = (yMax-yMin)*(xMax-xMin)*3;
+        adjustment = (int)(sqrt(area/3)/20);
+        boundaryYLow = max(top-adjustment, 0);
+        boundaryYUp = min(bottom+adjustment, imageRGB.rows());
+        boundaryXLow = max(left-adjustment, 0);
+        boundaryXUp = min(right+adjustment, imageRGB.cols());
+        if (DEBUG) {
+            Log.d("DEBUG", "top: " + top);
+            Log.d("DEBUG", "bottom: " + bottom);
+            Log.d("DEBUG", "left: " + left);
+            Log.d("DEBUG", "right: " + right);
+            Log.d("DEBUG", "area: " + area);
+            Log.d("DEBUG", "adjustment: " + adjustment);
+            Log.d("DEBUG", "boundaryYLow: " + boundaryYLow);
+            Log.d("DEBUG", "boundaryYUp: " + boundaryYUp);
+            Log.d("DEBUG", "boundaryXLow: " + boundaryXLow);
+            Log.d("DEBUG", "boundaryXUp: " + boundaryXUp);
+        }
     }
 
 
 
     @NonNull
-    private Size getGaussianKernelSize(int area, int rate) {
+    static Size getGaussianKernelSize(int area, int rate) {
+        int size = getGaussianKernel(area, rate);
+        return new Size(size, size);
+    }
+
+
+
+    // the odd Gaussian kernel width for a feature box of this area
+    static int getGaussianKernel(int area, int rate) {
         int size = max((int)(sqrt(area/3)/rate), 1);
         if (size % 2 != 1) {
             size = size + 1;
         }
-        return new Size(size, size);
+        return size;
     }
 
 
@@ -123,17 +256,70 @@ public class Feature {
     /*
         get the Mat of a certain feature
         e.g. if the Feature object being processed is jaw
-        then featureBGR and featureHSV are color representations
+        then featureRGB is the color representation
         of a box which encompass the jaw on the face
+        featureHSV is not converted here, see getFeatureHSV()
     */
     private void getFeature() {
-        int xLow = featureParams.get("boundaryXLow");
-        int xUp = featureParams.get("boundaryXUp");
-        int yLow = featureParams.get("boundaryYLow");
-        int yUp = featureParams.get("boundaryYUp");
-
+        int xLow = boundaryXLow;
+        int xUp = boundaryXUp;
+        int yLow = boundaryYLow;
+        int yUp = boundaryYUp;
+
+        // a steady face keeps its box, the view of the previous frame is still valid then
+        if (featureRGB != null && featureImage == imageRGB && featureBox.left == xLow && featureBox.top == yLow
+                && featureBox.right == xUp && featureBox.bottom == yUp) {
+            return;
+        }
+        release(featureRGB);
         featureRGB = imageRGB.submat(yLow, yUp, xLow, xUp);
-        featureHSV = imageHSV.submat(yLow, yUp, xLow, xUp);
+        matAllocationNum.incrementAndGet();
+        featureImage = imageRGB;
+        featureBox.set(xLow, yLow, xUp, yUp);
+    }
+
+
+
+    /*
+        get the HSV representation of the feature box, converted from featureRGB the first time it is needed
+        only the feature box is converted instead of the whole frame, the box already carries
+        the "adjustment" margin around the landmarks, which is the support of the mask feathering
+        and of the blur in brightening() (the mask is zero outside of it)
+        effects write their result back to featureRGB, i.e. only inside the box
+    */
+    public Mat getFeatureHSV() {
+        if (!hsvConverted) {
+            int rows = featureRGB.rows();
+            int cols = featureRGB.cols();
+            if (hsvBuffer == null || hsvBuffer.rows() < rows || hsvBuffer.cols() < cols) {
+                Mat previous = hsvBuffer;
+                hsvBuffer = new Mat(previous == null ? rows : max(rows, previous.rows()),
+                        previous == null ? cols : max(cols, previous.cols()), CvType.CV_8UC3);
+                matAllocationNum.incrementAndGet();
+                release(previous);
+                release(featureHSV);
+                featureHSV = null;
+            }
+            // the view is kept while the box size does not change
+            if (featureHSV == null || featureHSV.rows() != rows || featureHSV.cols() != cols) {
+                release(featureHSV);
+                featureHSV = hsvBuffer.submat(0, rows, 0, cols);
+                matAllocationNum.incrementAndGet();
+            }
+            Imgproc.cvtColor(featureRGB, featureHSV, Imgproc.COLOR_RGB2HSV);
+            hsvConverted = true;
+            convertedBytes += featureHSV.total() * featureHSV.elemSize();
+        }
+        return featureHSV;
+    }
+
+
+
+    /*
+        number of bytes written by the color conversions of this feature so far
+    */
+    public long getConvertedBytes() {
+        return convertedBytes;
     }
 
 
@@ -144,114 +330,179 @@ public class Feature {
         TODO: whitening/smoothening the skin can be implemented with simlilar principle
     */
     private void getFeatureRelativeMask() {
-        List<org.opencv.core.Point> landmarkPoints = new ArrayList<>();
-        int xOffset = max(featureParams.get("left")-featureParams.get("adjustment"), 0);
-        int yOffset = max(featureParams.get("top")-featureParams.get("adjustment"), 0);
-        for (Point element: featureLandmarks) {
-            double x = element.x - xOffset;
-            double y = element.y - yOffset;
-            org.opencv.core.Point point = new org.opencv.core.Point(x, y);
-            landmarkPoints.add(point);
+        int xOffset = max(left-adjustment, 0);
+        int yOffset = max(top-adjustment, 0);
+
+        // pack the landmarks (relative to the feature box) into one primitive array,
+        // which is all the rasterizer and the mask cache work on (reused, the landmark number is fixed per region)
+        if (relativePoints.length != featureLandmarks.size() * 2) {
+            relativePoints = new int[featureLandmarks.size() * 2];
         }
-        MatOfPoint landmarkMat = new MatOfPoint();
-        landmarkMat.fromList(landmarkPoints);
-        for (int i = 0; i < landmarkMat.rows(); ++i) {
-            for (int j = 0; j < landmarkMat.cols(); ++j) {
-                double point = landmarkMat.get(i, j)[0];
+        for (int i = 0; i < featureLandmarks.size(); ++i) {
+            Point element = featureLandmarks.get(i);
+            relativePoints[2*i] = element.x - xOffset;
+            relativePoints[2*i+1] = element.y - yOffset;
+        }
+
+        if (maskSource == MaskSource.TEMPLATE && region != null) {
+            if (templateMask == null) {
+                templateMask = new Mat();
+                matAllocationNum.incrementAndGet();
+            }
+            if (templateMask.rows() != featureRGB.rows() || templateMask.cols() != featureRGB.cols()) {
+                templateMask.create(featureRGB.rows(), featureRGB.cols(), CvType.CV_8UC1);
+                matAllocationNum.incrementAndGet();
+            }
+            if (FeatureTemplates.warp(region, relativePoints, templateMask)) {
+                featureRelativeMask = templateMask;
+                return;
             }
         }
 
-        //mask = Mat.zeros(featureRGB.rows(), featureRGB.cols(), CvType.CV_8U);
-        mask = new Mat(featureRGB.rows(), featureRGB.cols(), CvType.CV_8UC1, new Scalar(0));
-        MatOfInt hull = new MatOfInt();
-        //------------------------------------------------------------------------------------------
-        Imgproc.convexHull(landmarkMat, hull);
-        //------------------------------------------------------------------------------------------
-
-        org.opencv.core.Point[] landmarkArray = landmarkMat.toArray();
-        org.opencv.core.Point[] hullPoints = new org.opencv.core.Point[hull.rows()];
-        List<Integer> hullContourIdxList = hull.toList();
-        for (int i = 0; i < hullContourIdxList.size(); i++) {
-            hullPoints[i] = landmarkArray[hullContourIdxList.get(i)];
+        // a steady face keeps the same relative geometry from frame to frame,
+        // in that case the feathered mask is reused without any rasterizing or blurring
+        // the landmarks are snapped to the cache grid, and the mask is built from the snapped points
+        for (int i = 0; i < relativePoints.length; ++i) {
+            relativePoints[i] = maskCache.snap(relativePoints[i]);
         }
-        MatOfPoint hullMat = new MatOfPoint(hullPoints);
-
-        //------------------------------------------------------------------------------------------
-        Imgproc.fillConvexPoly(mask, hullMat, new Scalar(1));
-        //------------------------------------------------------------------------------------------
-
-        featureRelativeMask = new Mat(mask.rows(), mask.cols(), CvType.CV_8UC3);
-        for (int i = 0; i < mask.rows(); ++i) {
-            for (int j = 0; j < mask.cols(); ++j) {
-                double pixel = mask.get(i, j)[0];
-                double[] pixel3 = new double[3];
-                try {
-                    for (int c = 0; c < CHANNEL_NUM; ++c) {
-                        pixel3[c] = pixel;
-                    }
-                }
-                catch (Exception e) {
-                    Log.d(TAG, "error pixel: " + pixel);
-                }
-                featureRelativeMask.put(i, j, pixel3);
+        int kernel = getGaussianKernel(area, GAUSSIAN_KERNEL_RATE);
+        ksize.width = kernel;
+        ksize.height = kernel;
+        FeatherMode mode = featherMode;
+        // the contours are fixed per region, the region itself tells masks of equal geometry apart
+        int[] contourEnds = region != null ? region.getContourEnds() : null;
+        maskParams[0] = featureRGB.rows();
+        maskParams[1] = featureRGB.cols();
+        maskParams[2] = kernel;
+        maskParams[3] = mode.ordinal();
+        maskParams[4] = region != null ? region.ordinal() : -1;
+        lookupKey.set(maskParams, relativePoints);
+        // the mask of the previous frame is kept as it is if the geometry did not change
+        if (rasterMask == null || !lookupKey.equals(rasterKey)) {
+            release(rasterMask);
+            rasterMask = maskCache.get(lookupKey);
+            if (rasterMask == null) {
+                rasterMask = buildFeatherMask(featureRGB.rows(), featureRGB.cols(), relativePoints, contourEnds, ksize, mode);
+                maskCache.put(lookupKey, rasterMask);
             }
+            matAllocationNum.incrementAndGet();
+            FeatureMaskCache.Key swap = rasterKey;
+            rasterKey = lookupKey;
+            lookupKey = swap;
         }
-        ksize = getGaussianKernelSize(featureParams.get("area"), GAUSSIAN_KERNEL_RATE);
-
-        Imgproc.GaussianBlur(featureRelativeMask, featureRelativeMask, ksize, 0);
-        for (int i = 0; i < featureRelativeMask.rows(); ++i) {
-            for (int j = 0; j < featureRelativeMask.cols(); ++j) {
-                double[] pixel = featureRelativeMask.get(i, j);
-                try {
-                    for (int c = 0; c < CHANNEL_NUM; ++c) {
-                        if (pixel[c] > 0) {
-                            pixel[c] = 1;
-                        }
-                        featureRelativeMask.put(i, j, pixel);
-                    }
-                }
-                catch (Exception e) {
-                    break;
-                }
-            }
+        featureRelativeMask = rasterMask;
+    }
+
+
+
+    /*
+        rasterize the relative landmark points into a rows x cols mask and feather it
+        contourEnds (see FeatureRegion) splits the points into an outline and holes,
+        if it is null the convex hull of the points is used instead
+        only the outline is feathered, the holes keep an anti-aliased but sharp edge,
+        e.g. the lip ring fades out towards the skin but stops right at the teeth
+        ksize is the Gaussian kernel the feather is modeled on, in both feather modes
+    */
+    static Mat buildFeatherMask(int rows, int cols, int[] relativePoints, int[] contourEnds, Size ksize, FeatherMode mode) {
+        ScanlineRasterizer rasterizer = scanlineRasterizer.get();
+        Mat mask = new Mat(rows, cols, CvType.CV_8UC1);
+        if (contourEnds == null) {
+            mask.put(0, 0, rasterizer.rasterizeHull(rows, cols, relativePoints, relativePoints.length / 2));
+        }
+        else {
+            mask.put(0, 0, rasterizer.rasterize(rows, cols, relativePoints, contourEnds, 0, 1));
+        }
+
+        /*
+            the mask is feathered with whole-ROI operations only, no per-pixel get()/put():
+            1. blur, then set every pixel touched by the blur back to opaque (grows the mask a bit)
+            2. blur again to get the soft edge
+            (or the equivalent edge from a distance transform in FeatherMode.DISTANCE)
+            the result is a single-channel alpha mask in 0..255
+        */
+        Mat featherMask;
+        if (mode == FeatherMode.DISTANCE) {
+            featherMask = DistanceFeather.feather(mask, ksize);
+        }
+        else {
+            featherMask = new Mat(mask.rows(), mask.cols(), CvType.CV_8UC1);
+            Imgproc.GaussianBlur(mask, featherMask, ksize, 0);
+            Imgproc.threshold(featherMask, featherMask, 0, MAX_ALPHA_VAL, Imgproc.THRESH_BINARY);
+            Imgproc.GaussianBlur(featherMask, featherMask, ksize, 0);
+        }
+
+        // cut the holes out after feathering, so the grown outline does not fill them
+        if (contourEnds != null && contourEnds.length > 1) {
+            mask.put(0, 0, rasterizer.rasterize(rows, cols, relativePoints, contourEnds, 1, contourEnds.length));
+            Core.bitwise_not(mask, mask);
+            Core.min(featherMask, mask, featherMask);
         }
 
-        Imgproc.GaussianBlur(featureRelativeMask, featureRelativeMask, ksize, 0);
+        mask.release();
+        return featherMask;
     }
 
 
 
-    public void brightening(double rate) {
-        Mat HSV = new Mat(featureHSV.rows(), featureHSV.cols(), CvType.CV_8U);
-        for (int i = 0; i < featureHSV.rows(); ++i) {
-            for (int j = 0; j < featureHSV.cols(); ++j) {
-                // alter the channel representing saturation in feature HSV Mat
-                // in this case the lips' red will get deeper
-                double res = featureHSV.get(i, j)[BRIGHT_CHANNEL] * featureRelativeMask.get(i, j)[BRIGHT_CHANNEL] * rate;
-                double[] pixel = new double[1];
-                pixel[0] = res;
-                HSV.put(i, j, pixel);
-            }
-        }
+    /*
+        the cache of feathered masks shared by all features, e.g. for its hit/miss counters
+    */
+    public static FeatureMaskCache getMaskCache() {
+        return maskCache;
+    }
 
-        // do some Gaussian blur to make the change smoother and more natral
-        Imgproc.GaussianBlur(HSV, HSV, new Size(3, 3), 0);
 
 
-        for (int i = 0; i < featureHSV.rows(); ++i) {
-            for (int j = 0; j < featureHSV.cols(); ++j) {
-                double res = featureHSV.get(i, j)[BRIGHT_CHANNEL] + HSV.get(i, j)[0];
-                double[] pixel = featureHSV.get(i, j);
-                pixel[BRIGHT_CHANNEL] = Math.min(res, MAX_BRIGHT_VAL);
-                featureHSV.put(i, j, pixel);
-            }
-        }
-        // update the change in HSV to RGB (as the display will be in RGB format)
-        Imgproc.cvtColor(featureHSV, featureRGB, Imgproc.COLOR_HSV2RGB);
+    /*
+        number of Mats and Mat headers allocated by all features so far,
+        it only grows while the feature boxes or the mask geometry change
+    */
+    public static long getMatAllocationNum() {
+        return matAllocationNum.get();
     }
-}
 
 
 
+    public MaskSource getMaskSource() {
+        return maskSource;
+    }
+
+
+
+    public FeatherMode getFeatherMode() {
+        return featherMode;
+    }
+
+
+
+    /*
+        the feature box in image coordinates, i.e. where featureRGB lies in the image
+    */
+    public void getBounds(Rect bounds) {
+        bounds.set(boundaryXLow, boundaryYLow, boundaryXUp, boundaryYUp);
+    }
+
+
+
+    public void brightening(double rate) {
+        brightening(rate, featureRelativeMask);
+    }
+
+
 
+    /*
+        alphaMask weights the effect, null applies it to the whole box
+        (e.g. when the mask is applied later as the alpha of an overlay)
+    */
+    public void brightening(double rate, Mat alphaMask) {
+        // alter the channel representing saturation in feature HSV Mat
+        // in this case the lips' red will get deeper, the change is blurred
+        // with a 3x3 Gaussian inside the kernel to make it smoother and more natral
+        saturationKernel.get().boost(getFeatureHSV(), alphaMask, SaturationKernel.toFixedPoint(rate));
 
+        // update the change in HSV to RGB (as the display will be in RGB format)
+        // the image may be in the canonical RGBA format, keep its channel number
+        Imgproc.cvtColor(featureHSV, featureRGB, Imgproc.COLOR_HSV2RGB, featureRGB.channels());
+        convertedBytes += featureRGB.total() * featureRGB.elemSize();
+    }
+}
@@ -0,0 +1,232 @@
+package mango.whale.face;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Range;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of feathered feature masks, keyed by the feature geometry
+ * the key is the landmark layout relative to the feature box, snapped to a small grid,
+ * together with the box size and the feathering kernel, so the same mouth shape at a
+ * different position in the frame still hits the cache (the masks are box relative)
+ * memory is bounded by a byte budget, the least recently used masks are evicted first
+ */
+public class FeatureMaskCache {
+    private static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_GRID = 2;
+
+    private final LinkedHashMap<Key, Mat> masks = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxBytes;
+    private int grid;
+    private long bytes = 0;
+    private long hitNum = 0;
+    private long missNum = 0;
+    private long evictionNum = 0;
+
+
+
+    public FeatureMaskCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_GRID);
+    }
+
+
+    public FeatureMaskCache(int maxBytes, int grid) {
+        this.maxBytes = maxBytes;
+        this.grid = max1(grid);
+    }
+
+
+
+    /*
+        snap a landmark coordinate to the cache grid, the mask has to be built from
+        the snapped coordinates so that equal keys always mean equal masks
+    */
+    public synchronized int snap(int value) {
+        return Math.round(value / (float) grid) * grid;
+    }
+
+
+
+    /*
+        look a mask up, returns a new Mat header sharing the cached pixels
+        (so eviction never invalidates a mask that is still in use) or null on a miss
+    */
+    public synchronized Mat get(Key key) {
+        Mat mask = masks.get(key);
+        if (mask == null) {
+            ++missNum;
+            return null;
+        }
+        ++hitNum;
+        return new Mat(mask, Range.all());
+    }
+
+
+
+    /*
+        store a mask, the cache keeps its own header so the caller may keep using (or release) its Mat
+        and its own copy of the key, so the caller may reuse the key for later lookups
+    */
+    public synchronized void put(Key key, Mat mask) {
+        long size = mask.total() * mask.elemSize();
+        if (size > maxBytes) {
+            return;
+        }
+        Mat previous = masks.put(key.copy(), new Mat(mask, Range.all()));
+        if (previous != null) {
+            bytes -= previous.total() * previous.elemSize();
+            previous.release();
+        }
+        bytes += size;
+        trim(maxBytes);
+    }
+
+
+
+    public synchronized void clear() {
+        trim(0);
+    }
+
+
+
+    /*
+        change the memory budget in bytes, evicting masks if necessary
+    */
+    public synchronized void setMaxBytes(int maxBytes) {
+        this.maxBytes = maxBytes;
+        trim(maxBytes);
+    }
+
+
+
+    /*
+        change the snapping grid in pixels, all cached masks are dropped as their keys no longer apply
+    */
+    public synchronized void setGrid(int grid) {
+        if (max1(grid) != this.grid) {
+            this.grid = max1(grid);
+            trim(0);
+        }
+    }
+
+
+
+    public synchronized int getGrid() {
+        return grid;
+    }
+
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+
+    public synchronized int getSize() {
+        return masks.size();
+    }
+
+
+    public synchronized long getHitNum() {
+        return hitNum;
+    }
+
+
+    public synchronized long getMissNum() {
+        return missNum;
+    }
+
+
+    public synchronized long getEvictionNum() {
+        return evictionNum;
+    }
+
+
+    public synchronized void resetCounters() {
+        hitNum = 0;
+        missNum = 0;
+        evictionNum = 0;
+    }
+
+
+
+    private void trim(long limit) {
+        Iterator<Map.Entry<Key, Mat>> iterator = masks.entrySet().iterator();
+        while (bytes > limit && iterator.hasNext()) {
+            Mat mask = iterator.next().getValue();
+            bytes -= mask.total() * mask.elemSize();
+            mask.release();
+            iterator.remove();
+            ++evictionNum;
+        }
+    }
+
+
+
+    private static int max1(int value) {
+        return value < 1 ? 1 : value;
+    }
+
+
+
+    /**
+     * Geometry key of a feathered mask
+     * params are the values the mask depends on besides the landmarks (box size, kernel size, ...)
+     * points are the snapped, box relative landmark coordinates packed as x0, y0, x1, y1, ...
+     * a key can be set() again for every lookup, the cache only stores copies
+     */
+    public static final class Key {
+        private int[] params;
+        private int[] points;
+        private int hash;
+
+        public Key() {
+            this(new int[0], new int[0]);
+        }
+
+        public Key(int[] params, int[] points) {
+            this.params = params;
+            this.points = points;
+            this.hash = 31 * Arrays.hashCode(params) + Arrays.hashCode(points);
+        }
+
+        /*
+            copy new values into the key, its arrays are only allocated again if the lengths change
+        */
+        public void set(int[] params, int[] points) {
+            if (this.params.length != params.length) {
+                this.params = new int[params.length];
+            }
+            if (this.points.length != points.length) {
+                this.points = new int[points.length];
+            }
+            System.arraycopy(params, 0, this.params, 0, params.length);
+            System.arraycopy(points, 0, this.points, 0, points.length);
+            hash = 31 * Arrays.hashCode(params) + Arrays.hashCode(points);
+        }
+
+        public Key copy() {
+            return new Key(params.clone(), points.clone());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(params, other.params) && Arrays.equals(points, other.points);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
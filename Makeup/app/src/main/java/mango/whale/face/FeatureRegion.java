@@ -0,0 +1,63 @@
+package mango.whale.face;
+
+/**
+ * Facial regions of the 68-point landmark layout used by Face
+ * each region covers the landmark indices [low, up)
+ * the mask of a region is the convex hull of its landmarks, unless the region lists its contours:
+ * then the first contour is the outline and the others are holes, e.g. the mouth is the
+ * outer lip contour (48..59) minus the inner one (60..67), so teeth and an open mouth are left out
+ */
+public enum FeatureRegion {
+    JAW("jaw", 0, 17),
+    MOUTH("mouth", 48, 68, 12, 20),
+    NOSE("nose", 27, 35),
+    LEFT_EYE("leftEye", 42, 48),
+    RIGHT_EYE("rightEye", 36, 42),
+    LEFT_EYE_BROW("leftEyeBrow", 22, 27),
+    RIGHT_EYE_BROW("rightEyeBrow", 17, 22);
+
+    private final String featureName;
+    private final int low;
+    private final int up;
+    private final int[] contourEnds;
+
+    // contourEnds[i] is the number of the region's landmarks up to and including contour i
+    FeatureRegion(String featureName, int low, int up, int... contourEnds) {
+        this.featureName = featureName;
+        this.low = low;
+        this.up = up;
+        this.contourEnds = contourEnds.length > 0 ? contourEnds : null;
+    }
+
+
+    public String getFeatureName() {
+        return featureName;
+    }
+
+
+    public int getLow() {
+        return low;
+    }
+
+
+    public int getUp() {
+        return up;
+    }
+
+
+    // contour ends of the region's landmarks (see the constructor), null if the mask is the convex hull
+    public int[] getContourEnds() {
+        return contourEnds == null ? null : contourEnds.clone();
+    }
+
+
+    // look up a region by the feature name used in Face.getFeature(), null if there is no such region
+    public static FeatureRegion fromName(String featureName) {
+        for (FeatureRegion region : values()) {
+            if (region.featureName.equals(featureName)) {
+                return region;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,172 @@
+package mango.whale.face;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Feathered feature masks precomputed in the canonical face frame (see CanonicalFace)
+ * every region's template is rasterized and feathered once, at TEMPLATE_SCALE pixels per face unit,
+ * and is warped into the frame with the affine transform that best maps the canonical landmarks
+ * onto the detected ones, so a single warpAffine() replaces the hull, fill and double blur,
+ * and the feather looks the same whatever the size of the face
+ */
+final class FeatureTemplates {
+    private static final double TEMPLATE_SCALE = 512;
+    // normal equations whose determinant is this small relative to their scale are treated as degenerate
+    private static final double MIN_RELATIVE_DETERMINANT = 1e-9;
+
+    private static final Map<FeatureRegion, Template> templates = new EnumMap<>(FeatureRegion.class);
+    // the transform and its Mat are reused by every warp of a thread
+    private static final ThreadLocal<WarpScratch> warpScratch = new ThreadLocal<WarpScratch>() {
+        @Override
+        protected WarpScratch initialValue() {
+            return new WarpScratch();
+        }
+    };
+
+    private FeatureTemplates() {
+    }
+
+
+    private static final class Template {
+        Mat mask;
+        // template space coordinates of the region's landmarks, packed as x0, y0, x1, y1, ...
+        double[] points;
+    }
+
+
+    private static final class WarpScratch {
+        final Mat M = new Mat(2, 3, CvType.CV_64FC1);
+        final double[] transform = new double[6];
+        final Size size = new Size();
+        final Scalar border = new Scalar(0);
+    }
+
+
+
+    private static synchronized Template getTemplate(FeatureRegion region) {
+        Template template = templates.get(region);
+        if (template == null) {
+            template = buildTemplate(region);
+            templates.put(region, template);
+        }
+        return template;
+    }
+
+
+
+    private static Template buildTemplate(FeatureRegion region) {
+        int pointNum = region.getUp() - region.getLow();
+        double xMin = Double.MAX_VALUE;
+        double yMin = Double.MAX_VALUE;
+        double xMax = -Double.MAX_VALUE;
+        double yMax = -Double.MAX_VALUE;
+        for (int i = region.getLow(); i < region.getUp(); ++i) {
+            double x = CanonicalFace.getX(i) * TEMPLATE_SCALE;
+            double y = CanonicalFace.getY(i) * TEMPLATE_SCALE;
+            xMin = Math.min(xMin, x);
+            yMin = Math.min(yMin, y);
+            xMax = Math.max(xMax, x);
+            yMax = Math.max(yMax, y);
+        }
+
+        // same feathering kernel as Feature uses for a box of this size,
+        // and a margin wide enough for the whole feather to fit in the template
+        Size ksize = Feature.getGaussianKernelSize((int)((xMax-xMin) * (yMax-yMin)) * 3, Feature.GAUSSIAN_KERNEL_RATE);
+        int margin = (int) ksize.width;
+        int cols = (int) Math.ceil(xMax - xMin) + 2*margin + 1;
+        int rows = (int) Math.ceil(yMax - yMin) + 2*margin + 1;
+
+        Template template = new Template();
+        template.points = new double[pointNum * 2];
+        int[] rasterPoints = new int[pointNum * 2];
+        for (int i = 0; i < pointNum; ++i) {
+            template.points[2*i] = CanonicalFace.getX(region.getLow() + i) * TEMPLATE_SCALE - xMin + margin;
+            template.points[2*i+1] = CanonicalFace.getY(region.getLow() + i) * TEMPLATE_SCALE - yMin + margin;
+            rasterPoints[2*i] = (int) Math.round(template.points[2*i]);
+            rasterPoints[2*i+1] = (int) Math.round(template.points[2*i+1]);
+        }
+        // templates are only built once, so they always get the reference Gaussian feather
+        template.mask = Feature.buildFeatherMask(rows, cols, rasterPoints, region.getContourEnds(),
+                ksize, Feature.FeatherMode.GAUSSIAN);
+        return template;
+    }
+
+
+
+    /*
+        warp the region's template into mask, a single-channel Mat of the feature box size
+        relativePoints are the detected landmarks of the region relative to the box (x0, y0, x1, y1, ...)
+        returns false if the landmarks are degenerate and no transform can be estimated
+        nothing is allocated once the thread has warped a template
+    */
+    static boolean warp(FeatureRegion region, int[] relativePoints, Mat mask) {
+        Template template = getTemplate(region);
+        WarpScratch scratch = warpScratch.get();
+        if (!estimateAffine(template.points, relativePoints, scratch.transform)) {
+            return false;
+        }
+        scratch.M.put(0, 0, scratch.transform);
+        scratch.size.width = mask.cols();
+        scratch.size.height = mask.rows();
+        Imgproc.warpAffine(template.mask, mask, scratch.M, scratch.size,
+                Imgproc.INTER_LINEAR, org.opencv.core.Core.BORDER_CONSTANT, scratch.border);
+        return true;
+    }
+
+
+
+    /*
+        least squares affine transform [a0 a1 a2; b0 b1 b2] mapping from[i] onto to[i], written to transform
+        solved from the 3x3 normal equations with Cramer's rule, returns false if they are degenerate
+    */
+    private static boolean estimateAffine(double[] from, int[] to, double[] transform) {
+        int pointNum = from.length / 2;
+        double sxx = 0, sxy = 0, syy = 0, sx = 0, sy = 0;
+        double sxu = 0, syu = 0, su = 0, sxv = 0, syv = 0, sv = 0;
+        for (int i = 0; i < pointNum; ++i) {
+            double x = from[2*i];
+            double y = from[2*i+1];
+            double u = to[2*i];
+            double v = to[2*i+1];
+            sxx += x*x;
+            sxy += x*y;
+            syy += y*y;
+            sx += x;
+            sy += y;
+            sxu += x*u;
+            syu += y*u;
+            su += u;
+            sxv += x*v;
+            syv += y*v;
+            sv += v;
+        }
+        double n = pointNum;
+        double det = determinant(sxx, sxy, sx, sxy, syy, sy, sx, sy, n);
+        if (Math.abs(det) <= MIN_RELATIVE_DETERMINANT * sxx * syy * n) {
+            return false;
+        }
+        transform[0] = determinant(sxu, sxy, sx, syu, syy, sy, su, sy, n) / det;
+        transform[1] = determinant(sxx, sxu, sx, sxy, syu, sy, sx, su, n) / det;
+        transform[2] = determinant(sxx, sxy, sxu, sxy, syy, syu, sx, sy, su) / det;
+        transform[3] = determinant(sxv, sxy, sx, syv, syy, sy, sv, sy, n) / det;
+        transform[4] = determinant(sxx, sxv, sx, sxy, syv, sy, sx, sv, n) / det;
+        transform[5] = determinant(sxx, sxy, sxv, sxy, syy, syv, sx, sy, sv) / det;
+        return true;
+    }
+
+
+
+    // determinant of the row-major 3x3 matrix [a b c; d e f; g h i]
+    private static double determinant(double a, double b, double c,
+                                      double d, double e, double f,
+                                      double g, double h, double i) {
+        return a*(e*i - f*h) - b*(d*i - f*g) + c*(d*h - e*g);
+    }
+}
@@ -0,0 +1,131 @@
+package mango.whale.face;
+
+import org.opencv.core.Mat;
+
+/**
+ * Fused saturation-boost kernel used by Feature.brightening()
+ * the kernel reads the HSV ROI and its alpha mask once into primitive buffers,
+ * computes the mask weighted gain, blurs it with a 3x3 Gaussian in integer arithmetic
+ * and adds it to the saturation channel in place
+ * buffers are reused between calls, so a kernel allocates nothing once it has seen its largest ROI
+ */
+final class SaturationKernel {
+    private static final int CHANNEL_NUM = 3;
+    private static final int SATURATION_CHANNEL = 1;
+    private static final int MAX_VAL = 255;
+    // blend factors are fixed-point numbers with FIXED_POINT_SHIFT fractional bits
+    static final int FIXED_POINT_SHIFT = 8;
+    // the 3x3 Gaussian kernel is [1 2 1]^T * [1 2 1], its weights sum up to 1 << BLUR_SHIFT
+    private static final int BLUR_SHIFT = 4;
+
+    private byte[] pixels = new byte[0];
+    private byte[] alpha = new byte[0];
+    private int[] rowSums = new int[0];
+
+
+
+    /*
+        convert a blend rate into a fixed-point factor with FIXED_POINT_SHIFT fractional bits
+    */
+    static int toFixedPoint(double rate) {
+        return (int)(rate * (1 << FIXED_POINT_SHIFT) + 0.5);
+    }
+
+
+
+    /*
+        widen an alpha value from 0..255 to 0..256 so that multiplying by it
+        and shifting right by FIXED_POINT_SHIFT is exact for fully opaque pixels
+    */
+    static int widenAlpha(int alpha) {
+        return alpha + (alpha >> 7);
+    }
+
+
+
+    /*
+        index of a neighbour with openCV's default BORDER_REFLECT_101 rule, e.g. -1 -> 1 and n -> n-2
+    */
+    private static int reflect(int index, int n) {
+        if (n == 1) {
+            return 0;
+        }
+        if (index < 0) {
+            return -index;
+        }
+        if (index >= n) {
+            return 2*n - index - 2;
+        }
+        return index;
+    }
+
+
+
+    private void ensureCapacity(int pixelNum) {
+        if (alpha.length < pixelNum) {
+            pixels = new byte[pixelNum * CHANNEL_NUM];
+            alpha = new byte[pixelNum];
+            rowSums = new int[pixelNum];
+        }
+    }
+
+
+
+    /*
+        boost the saturation of a CV_8UC3 HSV Mat by gain = saturation * alpha * rate,
+        where alpha is a CV_8UC1 mask of the same size (or null for a fully opaque one) and fixedRate comes from toFixedPoint()
+        the gain is blurred with a 3x3 Gaussian before it is added, as GaussianBlur(gain, gain, 3x3, 0) would do
+    */
+    void boost(Mat hsv, Mat alphaMask, int fixedRate) {
+        int rows = hsv.rows();
+        int cols = hsv.cols();
+        int pixelNum = rows * cols;
+        if (pixelNum == 0) {
+            return;
+        }
+        ensureCapacity(pixelNum);
+        hsv.get(0, 0, pixels);
+        if (alphaMask != null) {
+            alphaMask.get(0, 0, alpha);
+        }
+        else {
+            for (int i = 0; i < pixelNum; ++i) {
+                alpha[i] = (byte) MAX_VAL;
+            }
+        }
+
+        // pass 1: gain of every pixel, fused with the horizontal [1 2 1] pass of the blur
+        for (int i = 0; i < rows; ++i) {
+            int rowStart = i * cols;
+            for (int j = 0; j < cols; ++j) {
+                int left = rowStart + reflect(j-1, cols);
+                int right = rowStart + reflect(j+1, cols);
+                rowSums[rowStart+j] = gain(left, fixedRate) + 2*gain(rowStart+j, fixedRate) + gain(right, fixedRate);
+            }
+        }
+
+        // pass 2: vertical [1 2 1] pass, rounding and the saturated add, written back in place
+        for (int i = 0; i < rows; ++i) {
+            int up = reflect(i-1, rows) * cols;
+            int rowStart = i * cols;
+            int down = reflect(i+1, rows) * cols;
+            for (int j = 0; j < cols; ++j) {
+                int sum = rowSums[up+j] + 2*rowSums[rowStart+j] + rowSums[down+j];
+                int increment = (sum + (1 << (BLUR_SHIFT-1))) >> BLUR_SHIFT;
+                int index = (rowStart+j)*CHANNEL_NUM + SATURATION_CHANNEL;
+                int res = (pixels[index] & 0xFF) + increment;
+                pixels[index] = (byte) (res < MAX_VAL ? res : MAX_VAL);
+            }
+        }
+        hsv.put(0, 0, pixels);
+    }
+
+
+
+    private int gain(int pixel, int fixedRate) {
+        int saturation = pixels[pixel*CHANNEL_NUM + SATURATION_CHANNEL] & 0xFF;
+        int weight = widenAlpha(alpha[pixel] & 0xFF);
+        int res = (saturation * weight * fixedRate) >> (2 * FIXED_POINT_SHIFT);
+        return res < MAX_VAL ? res : MAX_VAL;
+    }
+}
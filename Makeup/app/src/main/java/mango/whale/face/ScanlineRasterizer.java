@@ -0,0 +1,222 @@
+package mango.whale.face;
+
+/**
+ * Anti-aliased scanline polygon rasterizer working on packed int coordinates
+ * polygons are given as contours of points packed as x0, y0, x1, y1, ..., every contour is closed
+ * implicitly and the even-odd rule applies, so contours inside other contours cut holes
+ * (e.g. the inner lip contour inside the outer one gives the lip ring) and contours need not be convex
+ * landmark coordinates are pixel centers, coverage is exact horizontally and SUBSAMPLE_NUM times
+ * supersampled vertically, and the result is written to an alpha buffer that is reused between calls
+ */
+final class ScanlineRasterizer {
+    private static final int SUBSAMPLE_NUM = 4;
+    // fixed-point coordinates with FRACTION_BITS fractional bits
+    private static final int FRACTION_BITS = 8;
+    private static final int ONE = 1 << FRACTION_BITS;
+    private static final int HALF = ONE >> 1;
+    private static final int MAX_ALPHA_VAL = 255;
+    // full coverage of a pixel, i.e. ONE for each of the SUBSAMPLE_NUM scanlines
+    private static final int FULL_COVERAGE = ONE * SUBSAMPLE_NUM;
+
+    private byte[] alpha = new byte[0];
+    private int[] coverage = new int[0];
+    private int[] crossings = new int[0];
+    private int[] hull = new int[0];
+    private int[] order = new int[0];
+    private final int[] hullEnds = new int[1];
+
+
+
+    /*
+        rasterize the contours [contourLow, contourUp) into a rows x cols alpha mask (0..255, row-major)
+        points holds all contours back to back, contourEnds[i] is the number of points up to and including contour i
+        the returned buffer is owned by the rasterizer and only valid until the next call,
+        it may be longer than rows * cols
+    */
+    byte[] rasterize(int rows, int cols, int[] points, int[] contourEnds, int contourLow, int contourUp) {
+        int pixelNum = rows * cols;
+        if (alpha.length < pixelNum) {
+            alpha = new byte[pixelNum];
+        }
+        if (coverage.length < cols) {
+            coverage = new int[cols];
+        }
+        int pointLow = contourLow > 0 ? contourEnds[contourLow-1] : 0;
+        int pointUp = contourUp > contourLow ? contourEnds[contourUp-1] : pointLow;
+        if (crossings.length < pointUp) {
+            crossings = new int[pointUp];
+        }
+        for (int i = 0; i < pixelNum; ++i) {
+            alpha[i] = 0;
+        }
+        if (pointUp - pointLow < 3 || rows == 0 || cols == 0) {
+            return alpha;
+        }
+
+        // only the rows the polygon spans have to be scanned
+        int yMin = Integer.MAX_VALUE;
+        int yMax = Integer.MIN_VALUE;
+        for (int i = pointLow; i < pointUp; ++i) {
+            yMin = Math.min(yMin, points[2*i+1]);
+            yMax = Math.max(yMax, points[2*i+1]);
+        }
+        int rowLow = Math.max(yMin, 0);
+        int rowUp = Math.min(yMax + 1, rows);
+
+        for (int y = rowLow; y < rowUp; ++y) {
+            for (int x = 0; x < cols; ++x) {
+                coverage[x] = 0;
+            }
+            for (int s = 0; s < SUBSAMPLE_NUM; ++s) {
+                // the pixel row y covers [y - 1/2, y + 1/2), sample it at the middle of each of its sub-rows
+                int sampleY = (y << FRACTION_BITS) - HALF + ((2*s + 1) << FRACTION_BITS) / (2 * SUBSAMPLE_NUM);
+                int crossingNum = findCrossings(points, contourEnds, contourLow, contourUp, sampleY);
+                for (int c = 0; c + 1 < crossingNum; c += 2) {
+                    addSpan(crossings[c], crossings[c+1], cols);
+                }
+            }
+            int rowStart = y * cols;
+            for (int x = 0; x < cols; ++x) {
+                alpha[rowStart+x] = (byte) ((coverage[x] * MAX_ALPHA_VAL + FULL_COVERAGE/2) / FULL_COVERAGE);
+            }
+        }
+        return alpha;
+    }
+
+
+
+    /*
+        rasterize the convex hull of the points (x0, y0, x1, y1, ...), see rasterize()
+    */
+    byte[] rasterizeHull(int rows, int cols, int[] points, int pointNum) {
+        hullEnds[0] = convexHull(points, pointNum);
+        return rasterize(rows, cols, hull, hullEnds, 0, 1);
+    }
+
+
+
+    /*
+        Andrew's monotone chain, the hull is written to the hull buffer and its point number returned
+    */
+    private int convexHull(int[] points, int pointNum) {
+        if (order.length < pointNum) {
+            order = new int[pointNum];
+        }
+        // the chain holds at most 2 * pointNum points while it is built
+        if (hull.length < 4 * pointNum) {
+            hull = new int[4 * pointNum];
+        }
+        // sort point indices by x, then y (insertion sort, there are only a handful of landmarks)
+        for (int i = 0; i < pointNum; ++i) {
+            int current = i;
+            int j = i - 1;
+            while (j >= 0 && compare(points, order[j], current) > 0) {
+                order[j+1] = order[j];
+                --j;
+            }
+            order[j+1] = current;
+        }
+
+        int hullNum = 0;
+        // lower hull
+        for (int i = 0; i < pointNum; ++i) {
+            hullNum = pushHullPoint(points, order[i], hullNum, 2);
+        }
+        // upper hull
+        int lowerNum = hullNum + 1;
+        for (int i = pointNum - 2; i >= 0; --i) {
+            hullNum = pushHullPoint(points, order[i], hullNum, lowerNum);
+        }
+        // the last point equals the first one
+        return Math.max(hullNum - 1, Math.min(pointNum, 1));
+    }
+
+
+
+    private int pushHullPoint(int[] points, int index, int hullNum, int minNum) {
+        int x = points[2*index];
+        int y = points[2*index+1];
+        while (hullNum >= minNum && cross(hull[2*hullNum-4], hull[2*hullNum-3],
+                hull[2*hullNum-2], hull[2*hullNum-1], x, y) <= 0) {
+            --hullNum;
+        }
+        hull[2*hullNum] = x;
+        hull[2*hullNum+1] = y;
+        return hullNum + 1;
+    }
+
+
+
+    private static int compare(int[] points, int a, int b) {
+        if (points[2*a] != points[2*b]) {
+            return points[2*a] < points[2*b] ? -1 : 1;
+        }
+        return Integer.compare(points[2*a+1], points[2*b+1]);
+    }
+
+
+
+    // z component of (b - a) x (c - a), positive for a counter-clockwise turn
+    private static long cross(int ax, int ay, int bx, int by, int cx, int cy) {
+        return (long) (bx - ax) * (cy - ay) - (long) (by - ay) * (cx - ax);
+    }
+
+
+
+    /*
+        x coordinates (fixed-point) where the scanline at sampleY (fixed-point) crosses the contours, sorted
+    */
+    private int findCrossings(int[] points, int[] contourEnds, int contourLow, int contourUp, int sampleY) {
+        int crossingNum = 0;
+        int contourStart = contourLow > 0 ? contourEnds[contourLow-1] : 0;
+        for (int c = contourLow; c < contourUp; ++c) {
+            int contourEnd = contourEnds[c];
+            for (int i = contourStart; i < contourEnd; ++i) {
+                int j = i + 1 < contourEnd ? i + 1 : contourStart;
+                int y0 = points[2*i+1] << FRACTION_BITS;
+                int y1 = points[2*j+1] << FRACTION_BITS;
+                // half-open rule, so a scanline through a vertex is counted once
+                if ((y0 <= sampleY && sampleY < y1) || (y1 <= sampleY && sampleY < y0)) {
+                    int x0 = points[2*i] << FRACTION_BITS;
+                    int x1 = points[2*j] << FRACTION_BITS;
+                    int x = x0 + (int) ((long) (sampleY - y0) * (x1 - x0) / (y1 - y0));
+                    // insertion into the sorted crossing list
+                    int k = crossingNum - 1;
+                    while (k >= 0 && crossings[k] > x) {
+                        crossings[k+1] = crossings[k];
+                        --k;
+                    }
+                    crossings[k+1] = x;
+                    ++crossingNum;
+                }
+            }
+            contourStart = contourEnd;
+        }
+        return crossingNum;
+    }
+
+
+
+    /*
+        add the exact horizontal coverage of the span [xStart, xEnd) (fixed-point, pixel centers at integers)
+    */
+    private void addSpan(int xStart, int xEnd, int cols) {
+        // shift so that pixel x covers [x, x + 1)
+        int start = Math.max(xStart + HALF, 0);
+        int end = Math.min(xEnd + HALF, cols << FRACTION_BITS);
+        if (start >= end) {
+            return;
+        }
+        int first = start >> FRACTION_BITS;
+        int last = (end - 1) >> FRACTION_BITS;
+        if (first == last) {
+            coverage[first] += end - start;
+            return;
+        }
+        coverage[first] += ((first + 1) << FRACTION_BITS) - start;
+        for (int x = first + 1; x < last; ++x) {
+            coverage[x] += ONE;
+        }
+        coverage[last] += end - (last << FRACTION_BITS);
+    }
+}
@@ -3,31 +3,44 @@ package mango.whale.makeup;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.util.Log;
 import android.widget.ImageView;
 
-import org.opencv.android.Utils;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import mango.whale.detector.ModelRegistry;
 import mango.whale.dlib.Constants;
 import mango.whale.dlib.FaceDet;
+import mango.whale.dlib.FaceDetPool;
 import mango.whale.dlib.VisionDetRet;
 import mango.whale.face.Face;
 import mango.whale.face.Feature;
+import mango.whale.pipeline.ColorPipeline;
 
 public class ImageMakeupActivity extends AppCompatActivity {
     static private final boolean DEBUG = true;
     static private final String TAG = "mango.whale.makeup.MainActivity";
-    static private final String imageRelativePath = "/Download/1.jpg";
-    private FaceDet mFaceDet;
+    // the still images are numbered 1.jpg, 2.jpg, ... in this directory, their faces are detected in a batch
+    // and 1.jpg is made up and displayed
+    static private final String imageRelativeDirectory = "/Download";
+    static private final String imageExtension = ".jpg";
+    // the images are detected at the same time, each worker thread with its own FaceDet of the pool
+    private FaceDetPool mFaceDetPool;
+    private ExecutorService mBatchExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     static{
         System.loadLibrary("opencv_java3");
@@ -37,33 +50,117 @@ public class ImageMakeupActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_image_makeup);
-        mFaceDet = new FaceDet(Constants.getFaceShapeModelPath(), Constants.getClassifierPath());
-        addMakeup2StillImage();
+        // the shared FaceDet is loaded in the background once per process, the detectors of the pool share its
+        // landmark model, so the images are processed once it is ready
+        ModelRegistry.getInstance().getFaceDet().whenReady(new ModelRegistry.Callback<FaceDet>() {
+            @Override
+            public void onReady(FaceDet faceDet) {
+                if (isDestroyed()) {
+                    return;
+                }
+                startBatch();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "fail to load face detector: " + e.getMessage());
+            }
+        }, mMainHandler);
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        if (mBatchExecutor != null) {
+            mBatchExecutor.shutdownNow();
+        }
+        // detectors still leased by a worker are released when they are given back
+        if (mFaceDetPool != null) {
+            mFaceDetPool.close();
+        }
+        super.onDestroy();
     }
 
 
-    private void addMakeup2StillImage() {
-        File externalStorageDirectory = Environment.getExternalStorageDirectory();
+    /*
+        detect the faces of all numbered images at the same time, one image per worker thread
+    */
+    private void startBatch() {
+        File directory = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + imageRelativeDirectory);
+        final List<File> images = new ArrayList<>();
+        for (int i = 1; new File(directory, i + imageExtension).isFile(); ++i) {
+            images.add(new File(directory, i + imageExtension));
+        }
+        if (images.isEmpty()) {
+            Log.e(TAG, "no image " + new File(directory, 1 + imageExtension));
+            return;
+        }
+
+        int threadNum = Math.min(images.size(), FaceDetPool.defaultSize());
+        mFaceDetPool = new FaceDetPool(Constants.getFaceShapeModelPath(), Constants.getClassifierPath(), threadNum);
+        mBatchExecutor = Executors.newFixedThreadPool(threadNum);
+        final AtomicInteger remainingNum = new AtomicInteger(images.size());
+        final long start = System.nanoTime();
+        for (int i = 0; i < images.size(); ++i) {
+            final File image = images.get(i);
+            final boolean display = i == 0;
+            mBatchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        addMakeup2StillImage(image, display);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    catch (Exception e) {
+                        Log.e(TAG, "fail to process " + image + ": " + e.getMessage());
+                    }
+                    if (remainingNum.decrementAndGet() == 0) {
+                        Log.d(TAG, "detected " + images.size() + " images in " + (System.nanoTime() - start) / 1000000
+                                + " ms, face detector pool " + mFaceDetPool.report());
+                    }
+                }
+            });
+        }
+        mBatchExecutor.shutdown();
+    }
+
+
+    /*
+        runs on a worker thread of the batch, only the displayed image is made up
+    */
+    private void addMakeup2StillImage(File imageFile, boolean display) throws InterruptedException {
+        ColorPipeline colorPipeline = new ColorPipeline();
         /*
-            1. load and decode image, get its BGR and HSV matrix
+            1. load and decode image, get its canonical RGBA and gray matrix
+               (HSV is only computed per feature, see ColorPipeline for the conversion plan)
          */
-        Mat imageBGR = Imgcodecs.imread(externalStorageDirectory.getAbsolutePath() + imageRelativePath);
+        Mat imageBGR = Imgcodecs.imread(imageFile.getAbsolutePath());
+        if (imageBGR.empty()) {
+            Log.e(TAG, "fail to decode " + imageFile);
+            return;
+        }
         Mat imageGRAY = new Mat(imageBGR.rows(), imageBGR.cols(), CvType.CV_8UC1);
-        Mat imageRGB = new Mat(imageBGR.rows(), imageBGR.cols(), CvType.CV_8UC3);
-        Mat imageHSV = new Mat(imageBGR.rows(), imageBGR.cols(), CvType.CV_8UC3);
-        Imgproc.cvtColor(imageBGR, imageGRAY, Imgproc.COLOR_BGR2GRAY);
-        Imgproc.cvtColor(imageBGR, imageHSV, Imgproc.COLOR_BGR2HSV);
-        Imgproc.cvtColor(imageBGR, imageRGB, Imgproc.COLOR_BGR2RGB);
+        Mat imageRGBA = new Mat(imageBGR.rows(), imageBGR.cols(), ColorPipeline.CANONICAL_TYPE);
+        colorPipeline.ingestBGR(imageBGR, imageRGBA);
+        imageBGR.release();
+        colorPipeline.toGray(imageRGBA, imageGRAY);
 
 
         /*
-            2. detect face and get face landmarks
+            2. detect face and get face landmarks, with a detector of the pool
          */
-        Bitmap decodedImage = Bitmap.createBitmap(imageRGB.cols(), imageRGB.rows(), Bitmap.Config.ARGB_8888);
-        Utils.matToBitmap(imageRGB, decodedImage);
-        List<VisionDetRet> visionDetRets = mFaceDet.detect(imageGRAY);
-
-        assert visionDetRets != null;
+        List<VisionDetRet> visionDetRets = mFaceDetPool.detect(imageGRAY);
+        imageGRAY.release();
+        Log.d(TAG, imageFile.getName() + ": " + visionDetRets.size() + " faces");
+        if (!display) {
+            imageRGBA.release();
+            return;
+        }
+        final Bitmap decodedImage = Bitmap.createBitmap(imageRGBA.cols(), imageRGBA.rows(), Bitmap.Config.ARGB_8888);
+        colorPipeline.present(imageRGBA, decodedImage);
         ArrayList<ArrayList<Point>> landmarkPoints = new ArrayList<>();
         for (VisionDetRet visionDetRet:visionDetRets) {
             landmarkPoints.add(visionDetRet.getFaceLandmarks());
@@ -73,27 +170,40 @@ public class ImageMakeupActivity extends AppCompatActivity {
         /*
             3. initialize Face class
          */
-        @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
         ArrayList<Face> faces = new ArrayList<>(visionDetRets.size());
         for (ArrayList<Point> landmarkPoint: landmarkPoints) {
-            faces.add(new Face(imageRGB, imageHSV, landmarkPoint));
+            Face face = new Face(imageRGBA, landmarkPoint);
+            // faces in still images can be very large, use the feathering whose cost does not grow with the kernel
+            face.setFeatherMode(Feature.FeatherMode.DISTANCE);
+            faces.add(face);
             if (DEBUG) {
-                Feature mouth = faces.get(faces.size()-1).getFeature("mouth");
+                Feature mouth = face.getFeature("mouth");
 
 
                 mouth.brightening(3);
-
-
-                Bitmap bitmap = Bitmap.createBitmap(imageRGB.cols(), imageRGB.rows(), Bitmap.Config.ARGB_8888);
-                Utils.matToBitmap(imageRGB, bitmap);
-
-                // display both the original and processed images
+                colorPipeline.countFeature(mouth);
+            }
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(imageRGBA.cols(), imageRGBA.rows(), Bitmap.Config.ARGB_8888);
+        colorPipeline.present(imageRGBA, bitmap);
+        Log.d(TAG, "color pipeline " + colorPipeline.report());
+        for (Face face : faces) {
+            face.release();
+        }
+        imageRGBA.release();
+
+        // display both the original and processed images
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isDestroyed()) {
+                    return;
+                }
                 ImageView imageView1 = findViewById(R.id.imageView1);
                 imageView1.setImageBitmap(decodedImage);
                 ImageView imageView2 = findViewById(R.id.imageView2);
                 imageView2.setImageBitmap(bitmap);
-
             }
-        }
+        });
     }
 }
@@ -0,0 +1,16 @@
+package mango.whale.makeup;
+
+import android.app.Application;
+
+import mango.whale.detector.ModelRegistry;
+
+/**
+ * Starts loading the face models when the process starts, before any screen asks for them
+ */
+public class MakeupApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ModelRegistry.getInstance().warmUp();
+    }
+}
@@ -6,6 +6,8 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Point;
+import android.graphics.ImageFormat;
+import android.graphics.PixelFormat;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.media.Image;
@@ -22,28 +24,54 @@ import android.hardware.camera2.CaptureRequest;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.widget.Toast;
 
-import org.opencv.android.Utils;
-import org.opencv.core.CvType;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 
-import java.nio.ByteBuffer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import mango.whale.dlib.Constants;
-import mango.whale.dlib.FaceDet;
 import mango.whale.dlib.VisionDetRet;
+import mango.whale.detector.CascadeFaceDetector;
+import mango.whale.detector.FaceDetectorBackend;
+import mango.whale.detector.FaceDetectorBenchmark;
+import mango.whale.detector.HogFaceDetector;
+import mango.whale.detector.ModelRegistry;
+import mango.whale.detector.SsdFaceDetector;
 import mango.whale.face.Face;
 import mango.whale.face.Feature;
+import mango.whale.face.FeatureMaskCache;
+import mango.whale.pipeline.ColorPipeline;
+import mango.whale.pipeline.CoordinateTransform;
+import mango.whale.pipeline.DetectionScheduler;
+import mango.whale.pipeline.DropOldestQueue;
+import mango.whale.pipeline.FrameBufferPool;
+import mango.whale.pipeline.LandmarkFilter;
+import mango.whale.pipeline.LandmarkTracker;
+import mango.whale.pipeline.LastKnownLandmarks;
+import mango.whale.pipeline.LatestFrameSlot;
+import mango.whale.pipeline.PipelineStage;
+import mango.whale.pipeline.QualityGovernor;
 
 
 @SuppressLint("LongLogTag")
@@ -52,16 +80,133 @@ public class RealTimeMakeupActivity extends AppCompatActivity {
     static private final String TAG = "mango.whale.makeup.RealTimeMakeupActivity";
     static private final int PERMISSION_REQUEST_CODE = 1;
     static private final int LANDMARK_POINTS_NUM = 68;
-    static private final int MAX_SIMULTANEOUS_IMAGE = 35;
-    static private final int IMAGE_WIDTH = 320;
-    static private final int IMAGE_HEIGHT = 240;
-    static private final int DISPLAY_WIDTH = 800;
-    static private final int DISPLAY_HEIGHT = 600;
+    // the camera captures at CAPTURE resolution, faces are detected and tracked on a DETECTION proxy,
+    // makeup is applied at EFFECT resolution and the result is scaled to the view by the compositor
+    static private final int CAPTURE_WIDTH = 640;
+    static private final int CAPTURE_HEIGHT = 480;
+    static private final int DETECTION_WIDTH = 320;
+    static private final int DETECTION_HEIGHT = 240;
+    static private final int EFFECT_WIDTH = 640;
+    static private final int EFFECT_HEIGHT = 480;
     static private final double BRIGHTENING_RATE = 1.8;
+    static private final int STATS_LOG_INTERVAL = 100;
+    // frames waiting for a stage, older frames are dropped once a stage falls behind
+    static private final int STAGE_QUEUE_CAPACITY = 2;
+    // the most frames in flight: one being ingested, and a full queue plus one being processed per stage
+    static private final int FRAME_POOL_SIZE = 1 + 3 * (STAGE_QUEUE_CAPACITY + 1);
+    // every frame holds at most one camera image, plus the image being acquired and the one acquireLatestImage()
+    // needs to skip ahead, more images would only queue up behind the pool
+    static private final int MAX_SIMULTANEOUS_IMAGE = FRAME_POOL_SIZE + 2;
+    // detect asynchronously on the most recent frame and render every frame with the last known landmarks,
+    // instead of waiting for the detection of each frame before it is rendered
+    static private final boolean ASYNC_DETECTION = true;
+    // landmarks older than this are faded out over LANDMARK_FADE_MS
+    static private final long LANDMARK_MAX_AGE_MS = 500;
+    static private final long LANDMARK_FADE_MS = 250;
+    // a full detection every DETECTION_INTERVAL frames (or when tracking fails), the landmarks are tracked in between
+    static private final int DETECTION_INTERVAL = 5;
+    // while the filter predicts the motion well or the subject is still, detection is put off up to this interval
+    static private final int MAX_DETECTION_INTERVAL = 15;
+    // the motion score is the mean gray level difference inside the face box on a MOTION_WIDTH x MOTION_HEIGHT frame,
+    // below MOTION_REUSE_THRESHOLD the last landmarks are reused, above MOTION_DETECT_THRESHOLD the faces are detected
+    static private final int MOTION_WIDTH = 80;
+    static private final int MOTION_HEIGHT = 60;
+    static private final float MOTION_REUSE_THRESHOLD = 2f;
+    static private final float MOTION_DETECT_THRESHOLD = 20f;
+    // the quality governor walks down QUALITY_LADDER while the slowest stage takes longer than a frame at TARGET_FPS,
+    // or the asynchronous detection longer than ASYNC_DETECTION_BUDGET_FRAME_NUM frames (the tracker carries
+    // the landmarks meanwhile, but they get staler the longer it takes)
+    static private final int TARGET_FPS = 30;
+    static private final int ASYNC_DETECTION_BUDGET_FRAME_NUM = 3;
+    static private final QualityGovernor.Level[] QUALITY_LADDER = {
+            new QualityGovernor.Level(DETECTION_INTERVAL, 1f, 1, Feature.FeatherMode.GAUSSIAN, 4),
+            new QualityGovernor.Level(8, 1f, 1, Feature.FeatherMode.GAUSSIAN, 2),
+            new QualityGovernor.Level(10, 0.75f, 1, Feature.FeatherMode.DISTANCE, 2),
+            new QualityGovernor.Level(MAX_DETECTION_INTERVAL, 0.5f, 1, Feature.FeatherMode.DISTANCE, 1)
+    };
+    // the makeup effects in the order they are dropped from the end by the quality governor
+    static private final String[] MAKEUP_FEATURES = {"mouth"};
+    // live masks are warped from the canonical templates, a single warpAffine() per feature
+    // (the features fall back to the rasterized masks for degenerate landmarks)
+    static private final Feature.MaskSource MASK_SOURCE = Feature.MaskSource.TEMPLATE;
+    // the face detector backend is the fastest one on this device whose face box on the benchmark frame
+    // (raw/benchmark_face) overlaps the annotated one by at least BENCHMARK_MIN_OVERLAP, at every detection scale
+    // of QUALITY_LADDER (e.g. the HOG detector misses faces smaller than 80 pixels)
+    static private final float BENCHMARK_MIN_OVERLAP = 0.5f;
+    static private final int BENCHMARK_WARM_UP_NUM = 2;
+    static private final int BENCHMARK_RUN_NUM = 5;
+    static private final float SSD_MIN_CONFIDENCE = 0.5f;
+    // the selected backend is kept in the model registry, so a recreated activity does not benchmark again
+    static private final String FACE_DETECTOR_MODEL = "realTimeFaceDetector";
+    // the camera preview goes straight to the main surface and only the makeup regions are rendered,
+    // into a transparent overlay on top of it (the effect resolution has to be the capture resolution)
+    static private final boolean OVERLAY_MODE = true;
 
-    private FaceDet mFaceDet;
+    // null until the model registry has loaded it, frames are not detected until then
+    private volatile FaceDetectorBackend mFaceDetector;
+    private final ColorPipeline mColorPipeline = new ColorPipeline();
+    // per-frame buffers, leased for a frame and released once it is displayed
+    private final FrameBufferPool mFramePool =
+            new FrameBufferPool(EFFECT_WIDTH, EFFECT_HEIGHT, DETECTION_WIDTH, DETECTION_HEIGHT, FRAME_POOL_SIZE,
+                    !OVERLAY_MODE);
+    // landmarks are detected, tracked and filtered in detection coordinates and mapped to the effect resolution
+    private final CoordinateTransform mDetectionToEffect =
+            CoordinateTransform.between(DETECTION_WIDTH, DETECTION_HEIGHT, EFFECT_WIDTH, EFFECT_HEIGHT);
+    private final ArrayList<ArrayList<Point>> mEffectLandmarks = new ArrayList<>();
+    // the whole canvas of the main surface, the frames are drawn scaled to it
+    private final Rect mDisplayRect = new Rect();
+    // overlay mode: the overlay surface has the fixed size of the preview surface, so the compositor scales both
+    // the same way, the makeup regions are mapped from the effect resolution to the capture resolution
+    private final CoordinateTransform mEffectToOverlay =
+            CoordinateTransform.between(EFFECT_WIDTH, EFFECT_HEIGHT, CAPTURE_WIDTH, CAPTURE_HEIGHT);
+    private final Rect mFeatureRect = new Rect();
+    private final Rect mOverlayRect = new Rect();
+    // the capture size of the camera is checked once per camera session
+    private volatile boolean mFrameGeometryChecked = false;
+    /*
+        the frames go through four stages, each on its own thread:
+        ingest (ImageReader callback) -> detect -> render (makeup) -> present (canvas draw)
+        a dropped frame gives its buffers and camera image back right away
+    */
+    private final DropOldestQueue.DropHandler<FrameBufferPool.Frame> mFrameDropHandler =
+            new DropOldestQueue.DropHandler<FrameBufferPool.Frame>() {
+                @Override
+                public void onDrop(FrameBufferPool.Frame frame) {
+                    mFramePool.release(frame);
+                }
+            };
+    private HandlerThread mIngestThread;
+    private Handler mIngestHandler;
+    private PipelineStage<FrameBufferPool.Frame> mDetectStage;
+    private PipelineStage<FrameBufferPool.Frame> mRenderStage;
+    private PipelineStage<FrameBufferPool.Frame> mPresentStage;
+    // asynchronous detection (ASYNC_DETECTION), the detector thread takes the latest gray frame from the slot
+    private final LatestFrameSlot mDetectSlot = new LatestFrameSlot();
+    private final LastKnownLandmarks mLandmarks = new LastKnownLandmarks(
+            TimeUnit.MILLISECONDS.toNanos(LANDMARK_MAX_AGE_MS), TimeUnit.MILLISECONDS.toNanos(LANDMARK_FADE_MS));
+    private Thread mAsyncDetectThread;
+    // used by the render stage only, needsDetection() is asked by the ingest stage (see schedule())
+    private final LandmarkTracker mTracker = new LandmarkTracker(DETECTION_INTERVAL);
+    private long mLandmarkUpdateNum = 0;
+    // the gray frame the last known landmarks were detected on, used by the render stage only
+    private final Mat mDetectedGray = new Mat();
+    // smooths the tracked landmarks, used by the render stage only as well
+    private final LandmarkFilter mLandmarkFilter = new LandmarkFilter();
+    // decides per frame on the ingest thread whether to detect, track or reuse the landmarks,
+    // the render stage gives it the face box
+    private final DetectionScheduler mScheduler = new DetectionScheduler(MOTION_WIDTH, MOTION_HEIGHT,
+            MOTION_REUSE_THRESHOLD, MOTION_DETECT_THRESHOLD, MAX_DETECTION_INTERVAL);
+    private final QualityGovernor mGovernor =
+            new QualityGovernor(QUALITY_LADDER, TimeUnit.SECONDS.toNanos(1) / TARGET_FPS);
+    // the detection proxy scaled by the detectionScale of the quality level, used by the detector only
+    private final Mat mScaledGray = new Mat();
+    // box of the tracked faces the detector searches around first, used by the detector only
+    private final Rect mPriorRect = new Rect();
     private List<MatOfPoint2f> landmarks;
     private SurfaceHolder mSurfaceHolder;
+    private SurfaceHolder mOverlayHolder;
+    // the capture session is only created once both the camera is opened and the preview surface exists
+    private boolean mPreviewSurfaceReady = false;
     private CameraManager manager;
     private String mCameraId;
     private CameraDevice mCameraDevice;
@@ -83,25 +228,60 @@ public class RealTimeMakeupActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_real_time_makeup);
 
-        // load pre-trained face detection model
-        mFaceDet = new FaceDet(Constants.getFaceShapeModelPath(), Constants.getClassifierPath());
-        Log.d(TAG, "successfully loaded model");
+        // load pre-trained face detection model in the background (once per process), the shared FaceDet
+        // is queued first, so the backends find its landmark model already loaded
+        ModelRegistry registry = ModelRegistry.getInstance();
+        registry.warmUp();
+        registry.load(FACE_DETECTOR_MODEL, new Callable<FaceDetectorBackend>() {
+            @Override
+            public FaceDetectorBackend call() {
+                return selectFaceDetector();
+            }
+        }).whenReady(new ModelRegistry.Callback<FaceDetectorBackend>() {
+            @Override
+            public void onReady(FaceDetectorBackend detector) {
+                mFaceDetector = detector;
+                Log.d(TAG, "successfully loaded model");
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "fail to load face detector: " + e.getMessage());
+            }
+        }, null);
         landmarks = new ArrayList<>(LANDMARK_POINTS_NUM);
+        startPipeline();
 
 
         SurfaceView mSurfaceView = findViewById(R.id.mainSurface);
-        mImageReader = ImageReader.newInstance(IMAGE_WIDTH, IMAGE_HEIGHT, 0x2, MAX_SIMULTANEOUS_IMAGE);
+        // YUV frames, the luma plane is used for face detection as it is
+        mImageReader = ImageReader.newInstance(CAPTURE_WIDTH, CAPTURE_HEIGHT, ImageFormat.YUV_420_888, MAX_SIMULTANEOUS_IMAGE);
         mSurfaceHolder = mSurfaceView.getHolder();
+        if (OVERLAY_MODE) {
+            // the camera writes the preview into the main surface, scaled to the view by the compositor
+            mSurfaceHolder.setFixedSize(CAPTURE_WIDTH, CAPTURE_HEIGHT);
+        }
         mSurfaceHolder.addCallback(new SurfaceHolder.Callback() {
             @Override
-            public void surfaceCreated(SurfaceHolder holder) {}
+            public void surfaceCreated(SurfaceHolder holder) {
+                mPreviewSurfaceReady = true;
+                startPreviewSessionIfReady();
+            }
 
             @Override
             public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {}
 
             @Override
-            public void surfaceDestroyed(SurfaceHolder holder) {}
+            public void surfaceDestroyed(SurfaceHolder holder) {
+                mPreviewSurfaceReady = false;
+            }
         });
+        // transparent overlay for the makeup regions, composited on top of the preview
+        SurfaceView overlaySurfaceView = findViewById(R.id.overlaySurface);
+        overlaySurfaceView.setZOrderMediaOverlay(true);
+        mOverlayHolder = overlaySurfaceView.getHolder();
+        mOverlayHolder.setFormat(PixelFormat.TRANSLUCENT);
+        mOverlayHolder.setFixedSize(CAPTURE_WIDTH, CAPTURE_HEIGHT);
 
 //-----------------------------------------------------------------------------------------------------------------------------------------
         manager = (CameraManager) this.getSystemService(Context.CAMERA_SERVICE);
@@ -158,6 +338,147 @@ public class RealTimeMakeupActivity extends AppCompatActivity {
     }
 
 
+    @Override
+    protected void onDestroy() {
+        stopPipeline();
+        super.onDestroy();
+    }
+
+
+
+    private void startPipeline() {
+        mIngestThread = new HandlerThread("ingest");
+        mIngestThread.start();
+        mIngestHandler = new Handler(mIngestThread.getLooper());
+        mGovernor.setStageBudget(QualityGovernor.Stage.ASYNC_DETECT,
+                ASYNC_DETECTION_BUDGET_FRAME_NUM * TimeUnit.SECONDS.toNanos(1) / TARGET_FPS);
+        applyQualityLevel();
+
+        mDetectStage = new PipelineStage<FrameBufferPool.Frame>("detect",
+                new DropOldestQueue<>(STAGE_QUEUE_CAPACITY, mFrameDropHandler)) {
+            @Override
+            protected void process(FrameBufferPool.Frame frame) {
+                try {
+                    long start = System.nanoTime();
+                    detectFaces(frame);
+                    mGovernor.record(QualityGovernor.Stage.DETECT, System.nanoTime() - start);
+                    mRenderStage.getInput().put(frame);
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "fail to detect faces: " + e.getMessage());
+                    mFramePool.release(frame);
+                }
+            }
+        };
+        mRenderStage = new PipelineStage<FrameBufferPool.Frame>("render",
+                new DropOldestQueue<>(STAGE_QUEUE_CAPACITY, mFrameDropHandler)) {
+            @Override
+            protected void process(FrameBufferPool.Frame frame) {
+                try {
+                    long start = System.nanoTime();
+                    addMakeup(frame);
+                    mGovernor.record(QualityGovernor.Stage.RENDER, System.nanoTime() - start);
+                    mPresentStage.getInput().put(frame);
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "fail to add makeup: " + e.getMessage());
+                    mFramePool.release(frame);
+                }
+            }
+        };
+        mPresentStage = new PipelineStage<FrameBufferPool.Frame>("present",
+                new DropOldestQueue<>(STAGE_QUEUE_CAPACITY, mFrameDropHandler)) {
+            @Override
+            protected void process(FrameBufferPool.Frame frame) {
+                long start = System.nanoTime();
+                try {
+                    if (OVERLAY_MODE) {
+                        presentOverlay(frame);
+                    }
+                    else {
+                        Canvas canvas = mSurfaceHolder.lockCanvas();
+                        if (canvas != null) {
+                            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                            mDisplayRect.set(0, 0, canvas.getWidth(), canvas.getHeight());
+                            canvas.drawBitmap(frame.bitmap, null, mDisplayRect, null);
+                            mSurfaceHolder.unlockCanvasAndPost(canvas);
+                        }
+                    }
+                }
+                catch (Exception ignored) {}
+                finally {
+                    mFramePool.release(frame);
+                }
+                mGovernor.record(QualityGovernor.Stage.PRESENT, System.nanoTime() - start);
+            }
+        };
+        mAsyncDetectThread = new Thread("async detect") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Mat imageGRAY = mDetectSlot.take();
+                        long start = System.nanoTime();
+                        List<VisionDetRet> detections = detect(imageGRAY);
+                        mGovernor.record(QualityGovernor.Stage.ASYNC_DETECT, System.nanoTime() - start);
+                        mLandmarks.update(detections, imageGRAY, mDetectSlot.getTimestamp());
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (Exception e) {
+                        Log.e(TAG, "fail to detect faces: " + e.getMessage());
+                    }
+                }
+            }
+        };
+        if (ASYNC_DETECTION) {
+            mAsyncDetectThread.start();
+        }
+        else {
+            mDetectStage.start();
+        }
+        mRenderStage.start();
+        mPresentStage.start();
+    }
+
+
+
+    private void stopPipeline() {
+        if (mImageReader != null) {
+            mImageReader.setOnImageAvailableListener(null, null);
+        }
+        // an ingest callback that is already running may still lease a frame and hand it on,
+        // so the ingest thread has to be finished before the stages are stopped and the buffers released
+        mIngestThread.quitSafely();
+        try {
+            mIngestThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mAsyncDetectThread.interrupt();
+        mDetectStage.quit();
+        mRenderStage.quit();
+        mPresentStage.quit();
+        try {
+            mAsyncDetectThread.join();
+            mDetectStage.join();
+            mRenderStage.join();
+            mPresentStage.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mDetectStage.getInput().clear();
+        mRenderStage.getInput().clear();
+        mPresentStage.getInput().clear();
+        mFramePool.clear();
+        mDetectSlot.release();
+        mLandmarks.clear();
+        mDetectedGray.release();
+        mTracker.release();
+        mScheduler.release();
+        mScaledGray.release();
+    }
+
+
 
     // set camera state callback functions
     private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
@@ -165,7 +486,7 @@ public class RealTimeMakeupActivity extends AppCompatActivity {
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             mCameraDevice = cameraDevice;
             // create preview session to start the preview of processed frame
-            createCameraPreviewSession();
+            startPreviewSessionIfReady();
         }
 
         @Override
@@ -179,77 +500,97 @@ public class RealTimeMakeupActivity extends AppCompatActivity {
             cameraDevice.close();
             mCameraDevice = null;
         }
+    };
+
+
+
+    /*
+        create the capture session once the camera is opened and, in overlay mode, the preview surface exists
+        (both callbacks run on the main thread)
+    */
+    private void startPreviewSessionIfReady() {
+        if (mCameraDevice == null || mCaptureSession != null || (OVERLAY_MODE && !mPreviewSurfaceReady)) {
+            return;
+        }
+        createCameraPreviewSession();
+    }
 
 
-        private void createCameraPreviewSession() {
-            try {
-                mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-                //mPreviewRequestBuilder.addTarget(mSurfaceHolder.getSurface());
-                mPreviewRequestBuilder.addTarget(mImageReader.getSurface());
-
-                // create a capture session for preview
-                //mCameraDevice.createCaptureSession(Arrays.asList(mSurfaceHolder.getSurface(), mImageReader.getSurface()),
-                mCameraDevice.createCaptureSession(Collections.singletonList(mImageReader.getSurface()),
-                        new CameraCaptureSession.StateCallback() {
-                            @Override
-                            public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                                // camera is closed
-                                if (mCameraDevice == null) {
-                                    return;
-                                }
-                                // start preview when session is set
-                                mCaptureSession = cameraCaptureSession;
-                                try {
-                                    // auto focus
-                                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                                            CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-
-                                    // send preview request
-                                    mPreviewRequest = mPreviewRequestBuilder.build();
-                                    mCaptureSession.setRepeatingRequest(mPreviewRequest,
-                                            null, null);
-                                    Log.d(TAG,"open camera and start preview");
-                                } catch (CameraAccessException e) {
-                                    e.printStackTrace();
-                                }
+
+    private void createCameraPreviewSession() {
+        try {
+            mFrameGeometryChecked = false;
+            mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            // overlay mode: the preview is displayed by the main surface itself, the pipeline only renders the makeup
+            if (OVERLAY_MODE) {
+                mPreviewRequestBuilder.addTarget(mSurfaceHolder.getSurface());
+            }
+            mPreviewRequestBuilder.addTarget(mImageReader.getSurface());
+
+            // create a capture session for preview
+            mCameraDevice.createCaptureSession(OVERLAY_MODE
+                            ? Arrays.asList(mSurfaceHolder.getSurface(), mImageReader.getSurface())
+                            : Collections.singletonList(mImageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            // camera is closed
+                            if (mCameraDevice == null) {
+                                return;
                             }
+                            // start preview when session is set
+                            mCaptureSession = cameraCaptureSession;
+                            try {
+                                // auto focus
+                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
 
-                            @Override
-                            public void onConfigureFailed(
-                                    @NonNull CameraCaptureSession cameraCaptureSession) {
-                                Log.e(TAG,"onConfigureFailed: fail to start preview");
+                                // send preview request
+                                mPreviewRequest = mPreviewRequestBuilder.build();
+                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
+                                        null, null);
+                                Log.d(TAG,"open camera and start preview");
+                            } catch (CameraAccessException e) {
+                                e.printStackTrace();
                             }
-                        }, null);
+                        }
+
+                        @Override
+                        public void onConfigureFailed(
+                                @NonNull CameraCaptureSession cameraCaptureSession) {
+                            Log.e(TAG,"onConfigureFailed: fail to start preview");
+                        }
+                    }, null);
 
 //-------------------------------------------------------------------------------------------------------------------------------
-                // callback function when image data is ready from the camera
-                ImageReader.OnImageAvailableListener mOnImageAvailableListener
-                        = new ImageReader.OnImageAvailableListener() {
-                    // process available frame, i.e. add makeup and display the processed frame on preview surface
-                    @Override
-                    public void onImageAvailable(ImageReader reader) {
-                        try {
-                            Image image = reader.acquireLatestImage();
-                            //Image image = reader.acquireNextImage();
-                            Bitmap bitmap = addMakeup(image);
-                            Canvas canvas = mSurfaceHolder.lockCanvas();
-                            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-                            canvas.drawBitmap(bitmap, null, new Rect(0, 0, DISPLAY_WIDTH, DISPLAY_HEIGHT), null);
-                            mSurfaceHolder.unlockCanvasAndPost(canvas);
-                            image.close();
+            // callback function when image data is ready from the camera, runs on the ingest thread
+            ImageReader.OnImageAvailableListener mOnImageAvailableListener
+                    = new ImageReader.OnImageAvailableListener() {
+                // ingest available frame and hand it to the detect stage, the other stages add makeup and display it
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    try {
+                        Image image = reader.acquireLatestImage();
+                        //Image image = reader.acquireNextImage();
+                        if (image == null) {
+                            return;
                         }
-                        catch (Exception ignored) {}
+                        ingestFrame(image);
                     }
-                };
+                    catch (IllegalArgumentException e) {
+                        Log.e(TAG, "fail to process frame: " + e.getMessage());
+                    }
+                    catch (Exception ignored) {}
+                }
+            };
 //-------------------------------------------------------------------------------------------------------------------------------
 
-                mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, null);
-            } catch (CameraAccessException e) {
-                Log.e(TAG,"CameraAccessException: fail to start preview");
-                e.printStackTrace();
-            }
+            mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mIngestHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG,"CameraAccessException: fail to start preview");
+            e.printStackTrace();
         }
-    };
+    }
 
 
 
@@ -282,29 +623,72 @@ public class RealTimeMakeupActivity extends AppCompatActivity {
 
 
 
-    public Bitmap addMakeup(Image image) {
+    /*
+        ingest stage: lease the buffers of a frame for a camera image and pass it on to the detect stage
+    */
+    private void ingestFrame(Image image) {
+        if (!mFrameGeometryChecked) {
+            if (image.getWidth() != CAPTURE_WIDTH || image.getHeight() != CAPTURE_HEIGHT) {
+                image.close();
+                throw new IllegalArgumentException("capture size " + image.getWidth() + "x" + image.getHeight()
+                        + " is not " + CAPTURE_WIDTH + "x" + CAPTURE_HEIGHT);
+            }
+            mFrameGeometryChecked = true;
+        }
+
         /*
-            1. load and decode image, get its BGR and HSV matrix
+            1. wrap the YUV image, its luma plane is the gray matrix, no copy or conversion is needed
+               (RGBA is only converted after detection, HSV only per feature, see ColorPipeline for the conversion plan)
         */
-        // convert Image object to Bitmap object
-        int width = image.getWidth();
-        int height = image.getHeight();
-        Image.Plane[] planes = image.getPlanes();
-        ByteBuffer buffer = planes[0].getBuffer();
-        int pixelStride = planes[0].getPixelStride();
-        int rowStride = planes[0].getRowStride();
-        int rowPadding = rowStride - pixelStride * width;
-        Bitmap bitmap = Bitmap.createBitmap(width + rowPadding / pixelStride, height, Bitmap.Config.ARGB_8888);
-        bitmap.copyPixelsFromBuffer(buffer);
-
-        Mat imageBGR = new Mat(bitmap.getWidth(), bitmap.getHeight(), CvType.CV_8UC3);
-        Utils.bitmapToMat(bitmap, imageBGR);
-        Mat imageGRAY = new Mat(imageBGR.rows(), imageBGR.cols(), CvType.CV_8UC1);
-        Mat imageRGB = new Mat(imageBGR.rows(), imageBGR.cols(), CvType.CV_8UC3);
-        Mat imageHSV = new Mat(imageBGR.rows(), imageBGR.cols(), CvType.CV_8UC3);
-        Imgproc.cvtColor(imageBGR, imageGRAY, Imgproc.COLOR_BGR2GRAY);
-        Imgproc.cvtColor(imageBGR, imageHSV, Imgproc.COLOR_BGR2HSV);
-        Imgproc.cvtColor(imageBGR, imageRGB, Imgproc.COLOR_BGR2RGB);
+        long start = System.nanoTime();
+        FrameBufferPool.Frame frame = mFramePool.lease();
+        if (frame == null) {
+            // every frame is still in flight, drop the camera image instead of allocating another frame
+            image.close();
+            return;
+        }
+        frame.image = image;
+        frame.timestamp = image.getTimestamp();
+        mColorPipeline.ingest(image, frame.yuvFrame);
+        mColorPipeline.toGray(frame.yuvFrame, frame.proxyGray);
+        frame.decision = schedule(frame);
+        mGovernor.record(QualityGovernor.Stage.INGEST, System.nanoTime() - start);
+        if (ASYNC_DETECTION) {
+            // the detector gets its own copy of the detection proxy, the frame goes on to be rendered right away
+            if (frame.decision == DetectionScheduler.Decision.DETECT) {
+                mDetectSlot.offer(frame.proxyGray, frame.timestamp);
+            }
+            mRenderStage.getInput().put(frame);
+        }
+        else {
+            mDetectStage.getInput().put(frame);
+        }
+    }
+
+
+
+    /*
+        whether a frame gets a full detection, is tracked or reuses the last landmarks, from the motion in the face box:
+        the tracker asks for a detection every DETECTION_INTERVAL frames, which is put off while the landmark filter
+        predicts the motion well, but not beyond MAX_DETECTION_INTERVAL (see DetectionScheduler)
+    */
+    private DetectionScheduler.Decision schedule(FrameBufferPool.Frame frame) {
+        boolean stale = mTracker.needsDetection() && !mLandmarkFilter.isPredictable();
+        return mScheduler.schedule(frame.proxyGray, !mTracker.isTracking(), stale);
+    }
+
+
+
+    /*
+        detect stage: find the faces and their landmarks on the frame's luma plane
+    */
+    private void detectFaces(FrameBufferPool.Frame frame) {
+        // the tracker follows the landmarks between full detections
+        if (frame.decision != DetectionScheduler.Decision.DETECT) {
+            frame.detections = null;
+            return;
+        }
+        Mat imageGRAY = frame.proxyGray;
 
 
         /*
@@ -312,42 +696,380 @@ public class RealTimeMakeupActivity extends AppCompatActivity {
          */
         // use grey scale image to increase the efficiency (minor though...)
 //---------------------------------------------------------------------------------------------------------------------------------------------------
-        // TODO: this step alone may take up to 210 ms, try to find a way to optimize the use...
-        // TODO: maybe try to use openCV directly with classifier and Facemark from opencv_contrib
-        // TODO: could be a compromise between accuracy and efficiency
-        // TODO: for now, use grey scale input and smaller resolution may accelerate the processing speed
-        // TODO: if ArFace API provides a better face detection result (a box encompasses the face)
-        // TODO: one possible solution would be to use the result as the input of getting face landmarks
-        // TODO: however, this requires change in JNI .cpp file (jni_face_det.cpp, check out function getDetectResult())
-        // TODO: improving the efficiency requires a significant amount of work in the future
-        // TODO: while the sample face feature extraction has been implemented, other operations like
-        // TODO: whitening and smoothing are relatively easy to implement
-        // TODO: and there are many resources online using a different language (more likely in C++ or Python) to carry out a same implementation
-        visionDetRets = mFaceDet.detect(imageGRAY);
+        frame.detections = detect(imageGRAY);
 //---------------------------------------------------------------------------------------------------------------------------------------------------
+    }
+
+
 
-        assert visionDetRets != null;
-        ArrayList<ArrayList<Point>> landmarkPoints = new ArrayList<>();
-        for (VisionDetRet visionDetRet:visionDetRets) {
-            landmarkPoints.add(visionDetRet.getFaceLandmarks());
+    /*
+        render stage: add makeup to a frame with detected faces, the result is frame.bitmap
+        (null in overlay mode, where the result is the overlay Bitmaps of the frame)
+    */
+    public Bitmap addMakeup(FrameBufferPool.Frame frame) {
+        Mat imageRGBA = frame.imageRGBA;
+        // overlay mode: only the feature boxes are converted below, the camera image is kept until then
+        if (!OVERLAY_MODE) {
+            mColorPipeline.toRGBA(frame.yuvFrame, imageRGBA);
+            // the camera image is not needed any more, give it back to the ImageReader
+            FrameBufferPool.closeImage(frame);
+        }
+
+        // start tracking the landmarks of a new detection, otherwise track the landmarks on this frame
+        visionDetRets = null;
+        long detectionTimestamp = frame.timestamp;
+        if (ASYNC_DETECTION) {
+            // the landmarks, their frame and its timestamp have to come from the same update
+            synchronized (mLandmarks) {
+                if (mLandmarks.getUpdateNum() != mLandmarkUpdateNum) {
+                    mLandmarkUpdateNum = mLandmarks.getUpdateNum();
+                    detectionTimestamp = mLandmarks.getTimestamp();
+                    visionDetRets = mLandmarks.get(mDetectedGray);
+                }
+            }
+        }
+        else {
+            visionDetRets = frame.detections;
+        }
+        // a still subject keeps the landmarks of the previous frame, the filter is not moved on either
+        boolean reuse = visionDetRets == null && frame.decision == DetectionScheduler.Decision.REUSE
+                && mTracker.isTracking();
+        if (visionDetRets != null) {
+            // an asynchronous detection was made on an older frame: seed the tracker on that frame
+            // and track the landmarks forward to this one, so they do not lag by the detection latency
+            if (ASYNC_DETECTION && detectionTimestamp != frame.timestamp) {
+                mTracker.seed(visionDetRets, mDetectedGray);
+                mTracker.track(frame.proxyGray);
+            }
+            else {
+                mTracker.seed(visionDetRets, frame.proxyGray);
+            }
+        }
+        else if (!reuse) {
+            mTracker.track(frame.proxyGray);
+        }
+
+        // smooth the landmarks, the motion is only predicted for landmarks the tracker lost
+        int faceNum = mTracker.getFaceNum();
+        mLandmarkFilter.setTrackNum(faceNum);
+        for (int i = 0; !reuse && i < faceNum; ++i) {
+            if (visionDetRets != null || mTracker.isTracking()) {
+                mLandmarkFilter.filter(i, mTracker.getLandmarks(i));
+            }
+            else {
+                mLandmarkFilter.predict(i);
+            }
+        }
+        updateFaceBox(faceNum);
+
+        // landmarks the tracker lost are faded out once the last detection gets too old
+        float fade = 1;
+        if (ASYNC_DETECTION && !mTracker.isTracking()) {
+            fade = mLandmarks.getFade(frame.timestamp);
         }
         /*
-            3. initialize Face and Feature class, add makeup
+            3. initialize Face and Feature class (reusing the ones of the frame's previous use), add makeup
          */
-
-        @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
-        ArrayList<Face> faces = new ArrayList<>(visionDetRets.size());
-        for (ArrayList<Point> landmarkPoint: landmarkPoints) {
-            faces.add(new Face(imageRGB, imageHSV, landmarkPoint));
-            Feature mouth = faces.get(faces.size()-1).getFeature("mouth");
-            // TODO: may need to add more makeup options, like whitening, smoothing and so forth
-            mouth.brightening(BRIGHTENING_RATE);
+        while (mEffectLandmarks.size() < faceNum) {
+            mEffectLandmarks.add(new ArrayList<Point>(LANDMARK_POINTS_NUM));
+        }
+        QualityGovernor.Level level = mGovernor.getLevel();
+        int effectNum = Math.min(MAKEUP_FEATURES.length, level.maxEffectNum);
+        for (int i = 0; fade > 0 && i < Math.min(faceNum, level.maxFaceNum); ++i) {
+            ArrayList<Point> landmarkPoints = mEffectLandmarks.get(i);
+            mLandmarkFilter.getLandmarks(i, mDetectionToEffect, landmarkPoints);
+            Face face = frame.addFace(landmarkPoints);
+            face.setMaskSource(MASK_SOURCE);
+            // faces in the live stream are small, so the Gaussian feather kernel is small as well
+            // (the quality ladder switches to the distance feather under load)
+            face.setFeatherMode(level.featherMode);
+            for (int j = 0; j < effectNum; ++j) {
+                Feature feature = face.getFeature(MAKEUP_FEATURES[j]);
+                if (OVERLAY_MODE) {
+                    renderOverlay(frame, feature, BRIGHTENING_RATE * fade);
+                    continue;
+                }
+                // TODO: may need to add more makeup options, like whitening, smoothing and so forth
+                feature.brightening(BRIGHTENING_RATE * fade);
+                mColorPipeline.countFeature(feature);
+            }
         }
 
-        Imgproc.cvtColor(imageRGB, imageBGR, Imgproc.COLOR_RGB2BGR);
-        Bitmap result = Bitmap.createBitmap(imageBGR.cols(), imageBGR.rows(), Bitmap.Config.ARGB_8888);
-        Utils.matToBitmap(imageBGR, result);
+        Bitmap result = frame.bitmap;
+        if (OVERLAY_MODE) {
+            FrameBufferPool.closeImage(frame);
+        }
+        else {
+            mColorPipeline.present(imageRGBA, result);
+        }
+        mColorPipeline.endFrame();
+        if (mGovernor.update()) {
+            applyQualityLevel();
+            Log.d(TAG, "quality level " + mGovernor.getLevelIndex() + ": " + mGovernor.getLevel());
+        }
+        if (DEBUG && mColorPipeline.getFrameNum() % STATS_LOG_INTERVAL == 0) {
+            Log.d(TAG, "color pipeline " + mColorPipeline.report());
+            FeatureMaskCache maskCache = Feature.getMaskCache();
+            Log.d(TAG, "mask cache hits: " + maskCache.getHitNum() + ", misses: " + maskCache.getMissNum()
+                    + ", evictions: " + maskCache.getEvictionNum() + ", bytes: " + maskCache.getBytes());
+            Log.d(TAG, "frame pool frames: " + mFramePool.getFrameNum() + ", leased: " + mFramePool.getLeasedNum()
+                    + ", allocations: " + mFramePool.getAllocationNum() + ", leases: " + mFramePool.getLeaseNum()
+                    + ", exhausted: " + mFramePool.getExhaustedNum() + ", feature mats: " + Feature.getMatAllocationNum());
+            Log.d(TAG, "tracked landmarks: " + mTracker.getTrackedNum() + ", lost: " + mTracker.getLostNum());
+            Log.d(TAG, "scheduled detections: " + mScheduler.getDecisionNum(DetectionScheduler.Decision.DETECT)
+                    + ", tracked: " + mScheduler.getDecisionNum(DetectionScheduler.Decision.TRACK)
+                    + ", reused: " + mScheduler.getDecisionNum(DetectionScheduler.Decision.REUSE)
+                    + ", skip ratio: " + mScheduler.getSkipRatio() + ", motion: " + mScheduler.getScore());
+            for (int i = 0; i < mLandmarkFilter.getTrackNum(); ++i) {
+                Log.d(TAG, "face " + i + " landmark innovation: " + mLandmarkFilter.getInnovation(i) + " px");
+            }
+            Log.d(TAG, "quality level " + mGovernor.getLevelIndex() + "/" + (mGovernor.getLevelNum() - 1)
+                    + ", frame time: " + mGovernor.getFrameTime() / 1e6f + " ms, load: " + mGovernor.getLoad()
+                    + ", level changes: " + mGovernor.getChangeNum());
+            long detectDropNum = ASYNC_DETECTION ? mDetectSlot.getDropNum() : mDetectStage.getDropNum();
+            Log.d(TAG, "dropped frames detect: " + detectDropNum + ", render: " + mRenderStage.getDropNum()
+                    + ", present: " + mPresentStage.getDropNum());
+        }
 
         return result;
     }
+
+
+    /*
+        benchmark the face detector backends on the sample frame, scaled to the detection proxy and to the smallest
+        detection scale of the quality ladder, and keep the fastest backend accurate at both, the cascade is kept
+        if the sample frame cannot be read or no backend is accurate
+        runs on the loader thread of the model registry
+    */
+    private FaceDetectorBackend selectFaceDetector() {
+        String landMarkPath = Constants.getFaceShapeModelPath();
+        String classifierPath = Constants.getClassifierPath();
+        FaceDetectorBackend cascade = new CascadeFaceDetector(landMarkPath, classifierPath);
+        List<FaceDetectorBackend> backends = new ArrayList<>();
+        backends.add(cascade);
+        backends.add(new HogFaceDetector(landMarkPath, classifierPath));
+        try {
+            backends.add(new SsdFaceDetector(Constants.getSsdProtoPath(), Constants.getSsdModelPath(),
+                    landMarkPath, classifierPath, SSD_MIN_CONFIDENCE));
+        }
+        catch (Exception e) {
+            Log.d(TAG, "ssd face detector is not available: " + e.getMessage());
+        }
+
+        FaceDetectorBackend selected = null;
+        Mat frame = readBenchmarkFrame();
+        if (!frame.empty()) {
+            float minScale = 1f;
+            for (QualityGovernor.Level level : QUALITY_LADDER) {
+                minScale = Math.min(minScale, level.detectionScale);
+            }
+            float[] scales = minScale < 1f ? new float[]{1f, minScale} : new float[]{1f};
+            Mat[] samples = new Mat[scales.length];
+            Rect[] faces = new Rect[scales.length];
+            for (int i = 0; i < scales.length; ++i) {
+                faces[i] = new Rect();
+                samples[i] = scaleBenchmarkFrame(frame, scales[i], faces[i]);
+            }
+            FaceDetectorBenchmark benchmark =
+                    new FaceDetectorBenchmark(BENCHMARK_MIN_OVERLAP, BENCHMARK_WARM_UP_NUM, BENCHMARK_RUN_NUM);
+            selected = benchmark.select(backends, samples, faces);
+            for (FaceDetectorBenchmark.Result result : benchmark.getResults()) {
+                Log.d(TAG, "face detector " + result);
+            }
+            for (Mat sample : samples) {
+                sample.release();
+            }
+        }
+        frame.release();
+        if (selected == null) {
+            selected = cascade;
+        }
+        for (FaceDetectorBackend backend : backends) {
+            if (backend != selected) {
+                backend.release();
+            }
+        }
+        Log.d(TAG, "face detector: " + selected.getName());
+        return selected;
+    }
+
+
+
+    /*
+        the gray benchmark frame bundled as raw/benchmark_face, empty if it cannot be read
+    */
+    private Mat readBenchmarkFrame() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = null;
+        try {
+            in = getResources().openRawResource(R.raw.benchmark_face);
+            byte[] buffer = new byte[16 * 1024];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, length);
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "fail to read the benchmark frame: " + e.getMessage());
+            return new Mat();
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    Log.d(TAG, "fail to close the benchmark frame: " + e.getMessage());
+                }
+            }
+        }
+        MatOfByte encoded = new MatOfByte(bytes.toByteArray());
+        Mat frame = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_GRAYSCALE);
+        encoded.release();
+        return frame;
+    }
+
+
+
+    /*
+        crop the benchmark frame to the aspect ratio of the detection proxy around its annotated face and
+        scale it to the detection proxy times scale, face is set to the annotated face box in the returned sample
+    */
+    private Mat scaleBenchmarkFrame(Mat frame, float scale, Rect face) {
+        int[] box = getResources().getIntArray(R.array.benchmark_face_box);
+        int cropWidth = frame.cols();
+        int cropHeight = cropWidth * DETECTION_HEIGHT / DETECTION_WIDTH;
+        if (cropHeight > frame.rows()) {
+            cropHeight = frame.rows();
+            cropWidth = cropHeight * DETECTION_WIDTH / DETECTION_HEIGHT;
+        }
+        int cropX = Math.max(0, Math.min((box[0] + box[2] - cropWidth) / 2, frame.cols() - cropWidth));
+        int cropY = Math.max(0, Math.min((box[1] + box[3] - cropHeight) / 2, frame.rows() - cropHeight));
+        int width = Math.round(DETECTION_WIDTH * scale);
+        int height = Math.round(DETECTION_HEIGHT * scale);
+
+        Mat crop = frame.submat(cropY, cropY + cropHeight, cropX, cropX + cropWidth);
+        Mat sample = new Mat();
+        Imgproc.resize(crop, sample, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        crop.release();
+        face.set(box[0] - cropX, box[1] - cropY, box[2] - cropX, box[3] - cropY);
+        CoordinateTransform.between(cropWidth, cropHeight, width, height).mapRect(face, face);
+        return sample;
+    }
+
+
+
+    /*
+        set the levers of the current quality level that are not read per frame
+    */
+    private void applyQualityLevel() {
+        QualityGovernor.Level level = mGovernor.getLevel();
+        mTracker.setDetectionInterval(level.detectionInterval);
+        mScheduler.setMaxSkipInterval(Math.max(MAX_DETECTION_INTERVAL, level.detectionInterval));
+    }
+
+
+
+    /*
+        detect the faces on the detection proxy, or on a smaller copy of it at the detectionScale of the quality level,
+        the landmarks are always returned in detection proxy coordinates
+        a full scan of the frame alone may take up to 210 ms, so the detector searches around the box of
+        the tracked faces first, for faces of about its size, and only scans the whole frame if it finds
+        none there (see FaceDet.detect(Mat, Rect))
+        no faces are found while the detector is still loading
+    */
+    private List<VisionDetRet> detect(Mat imageGRAY) {
+        FaceDetectorBackend detector = mFaceDetector;
+        if (detector == null) {
+            return Collections.emptyList();
+        }
+        Rect prior = mScheduler.getFaceBox(mPriorRect) ? mPriorRect : null;
+        float scale = mGovernor.getLevel().detectionScale;
+        if (scale >= 1) {
+            return detector.detect(imageGRAY, prior);
+        }
+        Imgproc.resize(imageGRAY, mScaledGray, new Size(Math.round(imageGRAY.cols() * scale),
+                Math.round(imageGRAY.rows() * scale)), 0, 0, Imgproc.INTER_AREA);
+        CoordinateTransform toProxy = CoordinateTransform.between(mScaledGray.cols(), mScaledGray.rows(),
+                imageGRAY.cols(), imageGRAY.rows());
+        if (prior != null) {
+            toProxy.inverse().mapRect(prior, prior);
+        }
+        List<VisionDetRet> scaled = detector.detect(mScaledGray, prior);
+        List<VisionDetRet> res = new ArrayList<>(scaled.size());
+        for (VisionDetRet ret : scaled) {
+            VisionDetRet mapped = new VisionDetRet(ret.getLabel(), ret.getConfidence(),
+                    Math.round(toProxy.mapX(ret.getLeft())), Math.round(toProxy.mapY(ret.getTop())),
+                    Math.round(toProxy.mapX(ret.getRight())), Math.round(toProxy.mapY(ret.getBottom())));
+            for (Point point : ret.getFaceLandmarks()) {
+                mapped.addLandmark(Math.round(toProxy.mapX(point.x)), Math.round(toProxy.mapY(point.y)));
+            }
+            res.add(mapped);
+        }
+        return res;
+    }
+
+
+
+    /*
+        give the scheduler the box of all filtered landmarks in detection coordinates, the motion is measured inside of it
+    */
+    private void updateFaceBox(int faceNum) {
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for (int i = 0; i < faceNum; ++i) {
+            for (Point point : mLandmarkFilter.getLandmarks(i)) {
+                left = Math.min(left, point.x);
+                top = Math.min(top, point.y);
+                right = Math.max(right, point.x + 1);
+                bottom = Math.max(bottom, point.y + 1);
+            }
+        }
+        if (left < right && top < bottom) {
+            mScheduler.setFaceBox(left, top, right, bottom);
+        }
+        else {
+            mScheduler.clearFaceBox();
+        }
+    }
+
+
+
+    /*
+        overlay mode: convert only the feature box of the camera image, apply the makeup to the whole box
+        and give it the feature mask as alpha, the compositor blends it over the preview
+    */
+    private void renderOverlay(FrameBufferPool.Frame frame, Feature feature, double rate) {
+        feature.getBounds(mFeatureRect);
+        if (mFeatureRect.isEmpty()) {
+            return;
+        }
+        mColorPipeline.toRGBA(frame.yuvFrame, mFeatureRect, frame.imageRGBA);
+        feature.brightening(rate, null);
+        mColorPipeline.countFeature(feature);
+        Core.insertChannel(feature.featureRelativeMask, feature.featureRGB, 3);
+
+        mEffectToOverlay.mapRect(mFeatureRect, mOverlayRect);
+        Bitmap overlay = frame.addOverlay(mFeatureRect.width(), mFeatureRect.height(), mOverlayRect);
+        mColorPipeline.presentOverlay(feature.featureRGB, overlay);
+    }
+
+
+
+    /*
+        present stage in overlay mode: clear the overlay and draw the makeup regions of the frame
+    */
+    private void presentOverlay(FrameBufferPool.Frame frame) {
+        Canvas canvas = mOverlayHolder.lockCanvas();
+        if (canvas == null) {
+            return;
+        }
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        for (int i = 0; i < frame.getOverlayNum(); ++i) {
+            canvas.drawBitmap(frame.getOverlayBitmap(i), null, frame.getOverlayRect(i), null);
+        }
+        mOverlayHolder.unlockCanvasAndPost(canvas);
+    }
 }
@@ -0,0 +1,190 @@
+package mango.whale.pipeline;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.Image;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Locale;
+
+import mango.whale.face.Feature;
+
+/**
+ * Color conversion plan of the makeup pipeline
+ * the canonical in-memory pixel format is RGBA (CV_8UC4), which is the layout of ARGB_8888 Bitmaps,
+ * camera images are YUV_420_888 and wrapped without copying (see YuvFrame), every conversion below happens
+ * at most once per frame:
+ *  GRAY:        luma plane -> gray detection proxy, downscaled in one pass (no RGBA -> gray conversion)
+ *  INGEST:      YUV -> canonical RGBA, after face detection, resized to the effect resolution if that is
+ *               not the capture resolution
+ *  FEATURE_HSV: feature boxes only, RGBA -> HSV -> RGBA (see Feature.getFeatureHSV())
+ *  PRESENT:     canonical RGBA -> output Bitmap, one copy
+ * in overlay mode (the camera preview is displayed directly) only the feature boxes are converted to RGBA
+ * and presented, with the feature mask as alpha
+ * decoded files (see ImageMakeupActivity) are ingested from BGR and converted to gray from RGBA instead
+ * the number of bytes written by every stage is counted, so the cost of the plan can be checked
+ */
+public class ColorPipeline {
+    public static final int CANONICAL_TYPE = CvType.CV_8UC4;
+    public static final int CANONICAL_CHANNEL_NUM = 4;
+
+    public enum Stage {
+        INGEST,
+        GRAY,
+        FEATURE_HSV,
+        PRESENT
+    }
+
+    private final long[] stageBytes = new long[Stage.values().length];
+    // full resolution RGBA of a frame that is resized to the effect resolution
+    private final Mat captureRGBA = new Mat();
+    private long frameNum = 0;
+
+
+
+    /*
+        wrap a YUV_420_888 camera image without copying, frame.gray() is ready for face detection right away
+    */
+    public void ingest(Image image, YuvFrame frame) {
+        frame.wrap(image);
+    }
+
+
+
+    /*
+        convert a wrapped YUV_420_888 frame into the canonical RGBA Mat, imageRGBA may be smaller than
+        the frame (the effect resolution), it is resized then
+    */
+    public void toRGBA(YuvFrame frame, Mat imageRGBA) {
+        if (imageRGBA.cols() == frame.getWidth() && imageRGBA.rows() == frame.getHeight()) {
+            frame.toRGBA(imageRGBA);
+        }
+        else {
+            frame.toRGBA(captureRGBA);
+            Imgproc.resize(captureRGBA, imageRGBA, imageRGBA.size(), 0, 0, Imgproc.INTER_AREA);
+            count(Stage.INGEST, captureRGBA);
+        }
+        count(Stage.INGEST, imageRGBA);
+    }
+
+
+
+    /*
+        convert only a region of a wrapped YUV_420_888 frame into the same region of the canonical RGBA Mat,
+        which has to have the frame's size (e.g. the feature boxes in overlay mode)
+    */
+    public void toRGBA(YuvFrame frame, Rect roi, Mat imageRGBA) {
+        if (imageRGBA.cols() != frame.getWidth() || imageRGBA.rows() != frame.getHeight()) {
+            throw new IllegalArgumentException("region conversion needs an RGBA Mat of the frame size "
+                    + frame.getWidth() + "x" + frame.getHeight());
+        }
+        frame.toRGBA(roi, imageRGBA);
+        stageBytes[Stage.INGEST.ordinal()] += (long) roi.width() * roi.height() * CANONICAL_CHANNEL_NUM;
+    }
+
+
+
+    /*
+        downscale the luma plane of a frame straight into the gray detection proxy (one pass, no copy of the plane)
+    */
+    public void toGray(YuvFrame frame, Mat proxyGray) {
+        Imgproc.resize(frame.gray(), proxyGray, proxyGray.size(), 0, 0, Imgproc.INTER_AREA);
+        count(Stage.GRAY, proxyGray);
+    }
+
+
+
+    /*
+        convert a decoded BGR image (e.g. from Imgcodecs.imread()) into the canonical RGBA Mat
+    */
+    public void ingestBGR(Mat imageBGR, Mat imageRGBA) {
+        Imgproc.cvtColor(imageBGR, imageRGBA, Imgproc.COLOR_BGR2RGBA);
+        count(Stage.INGEST, imageRGBA);
+    }
+
+
+
+    public void toGray(Mat imageRGBA, Mat imageGRAY) {
+        Imgproc.cvtColor(imageRGBA, imageGRAY, Imgproc.COLOR_RGBA2GRAY);
+        count(Stage.GRAY, imageGRAY);
+    }
+
+
+
+    /*
+        account for the HSV round trip a feature did on its own box
+    */
+    public void countFeature(Feature feature) {
+        stageBytes[Stage.FEATURE_HSV.ordinal()] += feature.getConvertedBytes();
+    }
+
+
+
+    public void present(Mat imageRGBA, Bitmap bitmap) {
+        Utils.matToBitmap(imageRGBA, bitmap);
+        count(Stage.PRESENT, imageRGBA);
+    }
+
+
+
+    /*
+        copy a region with alpha (e.g. a feature box whose mask is in the alpha channel) into an overlay Bitmap
+    */
+    public void presentOverlay(Mat roiRGBA, Bitmap bitmap) {
+        Utils.matToBitmap(roiRGBA, bitmap, true);
+        count(Stage.PRESENT, roiRGBA);
+    }
+
+
+
+    public void endFrame() {
+        ++frameNum;
+    }
+
+
+
+    public long getStageBytes(Stage stage) {
+        return stageBytes[stage.ordinal()];
+    }
+
+
+
+    public long getFrameNum() {
+        return frameNum;
+    }
+
+
+
+    public void reset() {
+        for (int i = 0; i < stageBytes.length; ++i) {
+            stageBytes[i] = 0;
+        }
+        frameNum = 0;
+    }
+
+
+
+    /*
+        average number of bytes written per frame by every stage, e.g. for logging
+    */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("frames: ");
+        sb.append(frameNum);
+        long frames = Math.max(frameNum, 1);
+        for (Stage stage : Stage.values()) {
+            sb.append(String.format(Locale.US, ", %s: %d B/frame", stage.name(), stageBytes[stage.ordinal()] / frames));
+        }
+        return sb.toString();
+    }
+
+
+
+    private void count(Stage stage, Mat written) {
+        stageBytes[stage.ordinal()] += written.total() * written.elemSize();
+    }
+}
@@ -0,0 +1,101 @@
+package mango.whale.pipeline;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+/**
+ * Axis-aligned scale and offset between two pixel coordinate spaces, e.g. from the detection proxy
+ * to the effect resolution: x' = x * scaleX + offsetX, y' = y * scaleY + offsetY
+ * coordinates are pixel centers, so between() maps the centers of the corner pixels onto each other
+ * the way a resize() does, and not the pixel edges
+ */
+public final class CoordinateTransform {
+    public static final CoordinateTransform IDENTITY = new CoordinateTransform(1, 1, 0, 0);
+
+    private final float scaleX;
+    private final float scaleY;
+    private final float offsetX;
+    private final float offsetY;
+
+
+
+    public CoordinateTransform(float scaleX, float scaleY, float offsetX, float offsetY) {
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
+
+
+    /*
+        transform from a srcWidth x srcHeight image to the same image resized to dstWidth x dstHeight
+    */
+    public static CoordinateTransform between(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        float scaleX = dstWidth / (float) srcWidth;
+        float scaleY = dstHeight / (float) srcHeight;
+        // pixel x covers [x - 1/2, x + 1/2), its center maps to (x + 1/2) * scale - 1/2
+        return new CoordinateTransform(scaleX, scaleY, (scaleX - 1) / 2, (scaleY - 1) / 2);
+    }
+
+
+
+    public float mapX(float x) {
+        return x * scaleX + offsetX;
+    }
+
+
+
+    public float mapY(float y) {
+        return y * scaleY + offsetY;
+    }
+
+
+
+    /*
+        map a point, dst may be src
+    */
+    public void map(Point src, Point dst) {
+        dst.set(Math.round(mapX(src.x)), Math.round(mapY(src.y)));
+    }
+
+
+
+    /*
+        map a rectangle by its pixel edges (left/top are the edges of the first pixel, right/bottom exclusive),
+        dst may be src
+    */
+    public void mapRect(Rect src, Rect dst) {
+        // the edge e lies half a pixel before the center e
+        dst.set(Math.round(mapX(src.left - 0.5f) + 0.5f), Math.round(mapY(src.top - 0.5f) + 0.5f),
+                Math.round(mapX(src.right - 0.5f) + 0.5f), Math.round(mapY(src.bottom - 0.5f) + 0.5f));
+    }
+
+
+
+    public CoordinateTransform inverse() {
+        return new CoordinateTransform(1 / scaleX, 1 / scaleY, -offsetX / scaleX, -offsetY / scaleY);
+    }
+
+
+
+    /*
+        this transform followed by next
+    */
+    public CoordinateTransform then(CoordinateTransform next) {
+        return new CoordinateTransform(scaleX * next.scaleX, scaleY * next.scaleY,
+                offsetX * next.scaleX + next.offsetX, offsetY * next.scaleY + next.offsetY);
+    }
+
+
+
+    public float getScaleX() {
+        return scaleX;
+    }
+
+
+
+    public float getScaleY() {
+        return scaleY;
+    }
+}
@@ -0,0 +1,215 @@
+package mango.whale.pipeline;
+
+import android.graphics.Rect;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Per-frame choice between a full face detection, landmark tracking or reusing the previous landmarks
+ * the choice is driven by a cheap motion score: the gray frame is downscaled to a tiny frame and
+ * the mean absolute difference to the previous tiny frame is taken inside the last face box
+ * (or the whole frame while no face is known), in gray levels
+ *  score >= detectThreshold:  the subject moved a lot, DETECT
+ *  score <  reuseThreshold:   the subject is still, REUSE the previous landmarks
+ *  otherwise:                 TRACK, or DETECT if the caller reports the tracking as stale
+ * no face or maxSkipInterval frames without a detection always DETECT
+ * schedule() must be called from one thread, the face box and the settings may be changed from any thread
+ */
+public class DetectionScheduler {
+    public enum Decision {
+        DETECT,
+        TRACK,
+        REUSE
+    }
+
+    private final int tinyWidth;
+    private final int tinyHeight;
+    private volatile float reuseThreshold;
+    private volatile float detectThreshold;
+    private volatile int maxSkipInterval;
+
+    private Mat prevTiny = new Mat();
+    private Mat tiny = new Mat();
+    private final Mat diff = new Mat();
+    // last face box in the coordinates of the gray frames, empty while no face is known
+    private int boxLeft;
+    private int boxTop;
+    private int boxRight;
+    private int boxBottom;
+    private boolean hasBox = false;
+    private int framesSinceDetection = 0;
+    private volatile float score = 0;
+    private final long[] decisionNum = new long[Decision.values().length];
+
+
+
+    public DetectionScheduler(int tinyWidth, int tinyHeight, float reuseThreshold, float detectThreshold,
+                              int maxSkipInterval) {
+        this.tinyWidth = tinyWidth;
+        this.tinyHeight = tinyHeight;
+        this.reuseThreshold = reuseThreshold;
+        this.detectThreshold = detectThreshold;
+        this.maxSkipInterval = maxSkipInterval;
+    }
+
+
+
+    /*
+        decide for the next gray frame, lost means no face is tracked, stale that the tracking should be
+        refreshed by a detection unless the subject is still
+    */
+    public Decision schedule(Mat gray, boolean lost, boolean stale) {
+        score = motionScore(gray);
+        Decision decision;
+        if (lost || framesSinceDetection >= maxSkipInterval || score >= detectThreshold) {
+            decision = Decision.DETECT;
+        }
+        else if (score < reuseThreshold) {
+            decision = Decision.REUSE;
+        }
+        else if (stale) {
+            decision = Decision.DETECT;
+        }
+        else {
+            decision = Decision.TRACK;
+        }
+        framesSinceDetection = decision == Decision.DETECT ? 0 : framesSinceDetection + 1;
+        synchronized (decisionNum) {
+            ++decisionNum[decision.ordinal()];
+        }
+        return decision;
+    }
+
+
+
+    /*
+        mean absolute difference between the tiny versions of this and the previous gray frame inside the face box,
+        the first frame has no motion score and counts as moving
+    */
+    private float motionScore(Mat gray) {
+        Imgproc.resize(gray, tiny, new Size(tinyWidth, tinyHeight), 0, 0, Imgproc.INTER_AREA);
+        float res = Float.MAX_VALUE;
+        if (!prevTiny.empty()) {
+            int left = 0;
+            int top = 0;
+            int right = tinyWidth;
+            int bottom = tinyHeight;
+            synchronized (this) {
+                if (hasBox) {
+                    // rounded outwards, so a small box still covers at least one tiny pixel
+                    left = Math.max(boxLeft * tinyWidth / gray.cols(), 0);
+                    top = Math.max(boxTop * tinyHeight / gray.rows(), 0);
+                    right = Math.min((boxRight * tinyWidth + gray.cols() - 1) / gray.cols(), tinyWidth);
+                    bottom = Math.min((boxBottom * tinyHeight + gray.rows() - 1) / gray.rows(), tinyHeight);
+                }
+            }
+            if (left < right && top < bottom) {
+                Mat prevBox = prevTiny.submat(top, bottom, left, right);
+                Mat box = tiny.submat(top, bottom, left, right);
+                Core.absdiff(box, prevBox, diff);
+                res = (float) Core.mean(diff).val[0];
+                prevBox.release();
+                box.release();
+            }
+        }
+        Mat swap = prevTiny;
+        prevTiny = tiny;
+        tiny = swap;
+        return res;
+    }
+
+
+
+    /*
+        the box of the faces in the coordinates of the gray frames, the motion is only measured inside of it
+    */
+    public synchronized void setFaceBox(int left, int top, int right, int bottom) {
+        boxLeft = left;
+        boxTop = top;
+        boxRight = right;
+        boxBottom = bottom;
+        hasBox = left < right && top < bottom;
+    }
+
+
+
+    public synchronized void clearFaceBox() {
+        hasBox = false;
+    }
+
+
+
+    /*
+        the last face box, e.g. as the prior of the next detection, returns false if no face is known
+    */
+    public synchronized boolean getFaceBox(Rect box) {
+        if (hasBox) {
+            box.set(boxLeft, boxTop, boxRight, boxBottom);
+        }
+        return hasBox;
+    }
+
+
+
+    public void setReuseThreshold(float reuseThreshold) {
+        this.reuseThreshold = reuseThreshold;
+    }
+
+
+
+    public void setDetectThreshold(float detectThreshold) {
+        this.detectThreshold = detectThreshold;
+    }
+
+
+
+    public void setMaxSkipInterval(int maxSkipInterval) {
+        this.maxSkipInterval = maxSkipInterval;
+    }
+
+
+
+    // motion score of the last scheduled frame in gray levels
+    public float getScore() {
+        return score;
+    }
+
+
+
+    public long getDecisionNum(Decision decision) {
+        synchronized (decisionNum) {
+            return decisionNum[decision.ordinal()];
+        }
+    }
+
+
+
+    /*
+        share of the scheduled frames that did not get a full detection
+    */
+    public float getSkipRatio() {
+        synchronized (decisionNum) {
+            long total = 0;
+            for (long num : decisionNum) {
+                total += num;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            return 1 - decisionNum[Decision.DETECT.ordinal()] / (float) total;
+        }
+    }
+
+
+
+    public void release() {
+        prevTiny.release();
+        tiny.release();
+        diff.release();
+        framesSinceDetection = 0;
+        clearFaceBox();
+    }
+}
@@ -0,0 +1,97 @@
+package mango.whale.pipeline;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded hand-off queue between two pipeline stages
+ * if the consumer falls behind, put() drops the oldest waiting item instead of blocking the producer,
+ * so a slow stage only ever works on the freshest frames, and the number of drops is counted
+ * dropped items are handed to the DropHandler, e.g. to give their buffers back
+ */
+public class DropOldestQueue<T> {
+    public interface DropHandler<T> {
+        void onDrop(T item);
+    }
+
+    private final ArrayDeque<T> items;
+    private final int capacity;
+    private final DropHandler<T> dropHandler;
+    private long putNum = 0;
+    private long dropNum = 0;
+
+
+
+    public DropOldestQueue(int capacity, DropHandler<T> dropHandler) {
+        this.items = new ArrayDeque<>(capacity);
+        this.capacity = capacity;
+        this.dropHandler = dropHandler;
+    }
+
+
+
+    /*
+        add an item, dropping the oldest one if the queue is full
+    */
+    public void put(T item) {
+        T dropped = null;
+        synchronized (this) {
+            if (items.size() == capacity) {
+                dropped = items.pollFirst();
+                ++dropNum;
+            }
+            items.addLast(item);
+            ++putNum;
+            notifyAll();
+        }
+        // the handler runs outside of the lock, it may well take some time (e.g. closing an image)
+        if (dropped != null) {
+            dropHandler.onDrop(dropped);
+        }
+    }
+
+
+
+    /*
+        wait for the oldest item and remove it
+    */
+    public synchronized T take() throws InterruptedException {
+        while (items.isEmpty()) {
+            wait();
+        }
+        return items.pollFirst();
+    }
+
+
+
+    /*
+        hand all waiting items to the DropHandler, e.g. when the pipeline stops (not counted as drops)
+    */
+    public void clear() {
+        while (true) {
+            T item;
+            synchronized (this) {
+                item = items.pollFirst();
+            }
+            if (item == null) {
+                return;
+            }
+            dropHandler.onDrop(item);
+        }
+    }
+
+
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+
+    public synchronized long getPutNum() {
+        return putNum;
+    }
+
+
+    public synchronized long getDropNum() {
+        return dropNum;
+    }
+}
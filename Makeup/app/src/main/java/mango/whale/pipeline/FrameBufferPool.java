@@ -0,0 +1,310 @@
+package mango.whale.pipeline;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.media.Image;
+import android.support.annotation.Nullable;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import mango.whale.dlib.VisionDetRet;
+import mango.whale.face.Face;
+
+/**
+ * Pool of per-frame buffers of a fixed geometry for the live makeup loop
+ * a Frame holds everything a frame needs (the canonical RGBA Mat at the effect resolution, the gray
+ * detection proxy, the output Bitmap unless the pool is for overlay mode, and reusable Face objects),
+ * it is leased for a frame and released
+ * once the frame is displayed, so once the pool is warm streaming allocates no new Mats or Bitmaps
+ * and nothing is left to the finalizers
+ * at most maxFrameNum frames are allocated (on first use), once they are all leased lease() fails
+ * and the caller drops its camera image instead of growing the pool
+ */
+public class FrameBufferPool {
+    private final int width;
+    private final int height;
+    private final int proxyWidth;
+    private final int proxyHeight;
+    private final int maxFrameNum;
+    private final boolean withBitmap;
+    private static final int OVERLAY_BYTES_PER_PIXEL = 4;
+    private final ArrayDeque<Frame> idleFrames = new ArrayDeque<>();
+    private int frameNum = 0;
+    private int leasedNum = 0;
+    private long leaseNum = 0;
+    private long allocationNum = 0;
+    private long exhaustedNum = 0;
+
+
+
+    /**
+     * Buffers of one frame
+     * a frame travels through the pipeline stages together with the camera image it was ingested from,
+     * the image is closed as soon as its pixels are converted into imageRGBA
+     */
+    public static final class Frame {
+        public final Mat imageRGBA;
+        // downscaled gray frame faces are detected and tracked on
+        public final Mat proxyGray;
+        // the whole output frame, null in overlay mode (only the overlay Bitmaps are drawn then)
+        @Nullable
+        public final Bitmap bitmap;
+        public final YuvFrame yuvFrame = new YuvFrame();
+        public Image image;
+        // camera timestamp of the image in nanoseconds
+        public long timestamp;
+        public List<VisionDetRet> detections;
+        // what the detection scheduler chose for this frame
+        public DetectionScheduler.Decision decision;
+        private final ArrayList<Face> faces = new ArrayList<>();
+        private int faceNum = 0;
+        // overlay mode: the makeup regions and where they are drawn on the display
+        private final ArrayList<Bitmap> overlayBitmaps = new ArrayList<>();
+        private final ArrayList<Rect> overlayRects = new ArrayList<>();
+        private int overlayNum = 0;
+
+        private Frame(int width, int height, int proxyWidth, int proxyHeight, boolean withBitmap) {
+            imageRGBA = new Mat(height, width, ColorPipeline.CANONICAL_TYPE);
+            proxyGray = new Mat(proxyHeight, proxyWidth, CvType.CV_8UC1);
+            bitmap = withBitmap ? Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888) : null;
+        }
+
+
+        /*
+            a face of this frame on imageRGBA, the Face objects (and their features) of earlier frames are reused
+        */
+        public Face addFace(ArrayList<Point> landmarkPoints) {
+            Face face;
+            if (faceNum < faces.size()) {
+                face = faces.get(faceNum);
+                face.reset(imageRGBA, landmarkPoints);
+            }
+            else {
+                face = new Face(imageRGBA, landmarkPoints);
+                faces.add(face);
+            }
+            ++faceNum;
+            return face;
+        }
+
+
+        public int getFaceNum() {
+            return faceNum;
+        }
+
+
+        /*
+            a width x height overlay Bitmap of this frame, drawn into displayRect
+            the Bitmaps of earlier frames are reconfigured if they are large enough, instead of allocated again
+        */
+        public Bitmap addOverlay(int width, int height, Rect displayRect) {
+            Bitmap bitmap = null;
+            if (overlayNum < overlayBitmaps.size()) {
+                bitmap = overlayBitmaps.get(overlayNum);
+                if (bitmap.getAllocationByteCount() >= width * height * OVERLAY_BYTES_PER_PIXEL) {
+                    bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                }
+                else {
+                    bitmap.recycle();
+                    bitmap = null;
+                }
+            }
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                if (overlayNum < overlayBitmaps.size()) {
+                    overlayBitmaps.set(overlayNum, bitmap);
+                }
+                else {
+                    overlayBitmaps.add(bitmap);
+                    overlayRects.add(new Rect());
+                }
+            }
+            overlayRects.get(overlayNum).set(displayRect.left, displayRect.top, displayRect.right, displayRect.bottom);
+            ++overlayNum;
+            return bitmap;
+        }
+
+
+        public int getOverlayNum() {
+            return overlayNum;
+        }
+
+
+        public Bitmap getOverlayBitmap(int index) {
+            return overlayBitmaps.get(index);
+        }
+
+
+        public Rect getOverlayRect(int index) {
+            return overlayRects.get(index);
+        }
+
+
+        public Face getFace(int index) {
+            return faces.get(index);
+        }
+
+
+        private void release() {
+            imageRGBA.release();
+            proxyGray.release();
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            for (Bitmap overlay : overlayBitmaps) {
+                overlay.recycle();
+            }
+            for (Face face : faces) {
+                face.release();
+            }
+            faces.clear();
+        }
+    }
+
+
+
+    /*
+        width x height is the effect resolution, proxyWidth x proxyHeight the detection resolution,
+        maxFrameNum the most frames in flight at the same time, withBitmap whether the frames need an output Bitmap
+        (not in overlay mode, where the camera preview is displayed directly)
+    */
+    public FrameBufferPool(int width, int height, int proxyWidth, int proxyHeight, int maxFrameNum,
+                           boolean withBitmap) {
+        if (maxFrameNum < 1) {
+            throw new IllegalArgumentException("pool size " + maxFrameNum + " is not positive");
+        }
+        this.width = width;
+        this.height = height;
+        this.proxyWidth = proxyWidth;
+        this.proxyHeight = proxyHeight;
+        this.maxFrameNum = maxFrameNum;
+        this.withBitmap = withBitmap;
+    }
+
+
+
+    /*
+        lease the buffers of a frame, a new Frame is only allocated while fewer than maxFrameNum exist
+        returns null if all frames are in use, the pool never grows beyond maxFrameNum
+    */
+    @Nullable
+    public synchronized Frame lease() {
+        Frame frame = idleFrames.pollFirst();
+        if (frame == null) {
+            if (frameNum >= maxFrameNum) {
+                ++exhaustedNum;
+                return null;
+            }
+            frame = new Frame(width, height, proxyWidth, proxyHeight, withBitmap);
+            ++frameNum;
+            ++allocationNum;
+        }
+        frame.faceNum = 0;
+        frame.overlayNum = 0;
+        frame.image = null;
+        frame.detections = null;
+        frame.decision = DetectionScheduler.Decision.DETECT;
+        ++leasedNum;
+        ++leaseNum;
+        return frame;
+    }
+
+
+
+    /*
+        give a leased frame back, its buffers are reused by a later lease()
+        the camera image is closed if the frame still holds one (e.g. a frame dropped before its conversion)
+    */
+    public synchronized void release(Frame frame) {
+        closeImage(frame);
+        --leasedNum;
+        idleFrames.addFirst(frame);
+    }
+
+
+
+    /*
+        close the frame's camera image and release the views into it
+    */
+    public static void closeImage(Frame frame) {
+        frame.yuvFrame.release();
+        if (frame.image != null) {
+            frame.image.close();
+            frame.image = null;
+        }
+    }
+
+
+
+    /*
+        free all idle frames, e.g. when the camera session ends
+    */
+    public synchronized void clear() {
+        for (Frame frame : idleFrames) {
+            frame.release();
+        }
+        frameNum -= idleFrames.size();
+        idleFrames.clear();
+    }
+
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    public int getProxyWidth() {
+        return proxyWidth;
+    }
+
+
+    public int getProxyHeight() {
+        return proxyHeight;
+    }
+
+
+    // number of frames owned by the pool, leased or idle
+    public synchronized int getFrameNum() {
+        return frameNum;
+    }
+
+
+    // number of frames currently leased
+    public synchronized int getLeasedNum() {
+        return leasedNum;
+    }
+
+
+    public synchronized long getLeaseNum() {
+        return leaseNum;
+    }
+
+
+    // number of frames allocated so far, stays constant in steady state
+    public synchronized long getAllocationNum() {
+        return allocationNum;
+    }
+
+
+    public int getMaxFrameNum() {
+        return maxFrameNum;
+    }
+
+
+    // leases that failed because all frames were in use
+    public synchronized long getExhaustedNum() {
+        return exhaustedNum;
+    }
+}
@@ -0,0 +1,256 @@
+package mango.whale.pipeline;
+
+import android.graphics.Point;
+
+import java.util.ArrayList;
+
+/**
+ * Constant-velocity Kalman filter smoothing the landmark stream of every tracked face
+ * every landmark coordinate has a position and velocity state, the time step is one frame
+ * all coordinates of a track are measured at the same time with the same noise, so they share
+ * one covariance (and gain), and the filter runs on primitive arrays only,
+ * which makes it the same as org.opencv.video.KalmanFilter per coordinate at a fraction of the cost
+ * filter() corrects a track with measured landmarks, predict() moves it on for frames without any,
+ * the innovation (mean distance between the measured and the predicted landmarks) tells how well
+ * the motion of a track is predicted
+ * the filter is run by one thread, isPredictable() may be called from any thread
+ */
+public class LandmarkFilter {
+    private static final float DEFAULT_PROCESS_NOISE = 0.5f;
+    private static final float DEFAULT_MEASUREMENT_NOISE = 4f;
+    // initial variance of the velocity of a new track, in (pixels / frame)^2
+    private static final float INITIAL_VELOCITY_VARIANCE = 16f;
+    // innovation in pixels below which the motion of a track counts as predictable
+    private static final float PREDICTABLE_INNOVATION = 1.5f;
+
+    private final float processNoise;
+    private final float measurementNoise;
+    private final ArrayList<Track> tracks = new ArrayList<>();
+    private int trackNum = 0;
+    // see isPredictable(), updated after every change of the tracks
+    private volatile boolean predictable = false;
+
+
+
+    private static final class Track {
+        // packed as x0, y0, x1, y1, ...
+        float[] position = new float[0];
+        float[] velocity = new float[0];
+        int pointNum = 0;
+        // shared covariance [p00 p01; p01 p11] of all coordinates
+        float p00;
+        float p01;
+        float p11;
+        boolean initialized = false;
+        // the innovation is only known once the track has been corrected
+        boolean corrected = false;
+        float innovation = 0;
+        final ArrayList<Point> landmarks = new ArrayList<>();
+    }
+
+
+
+    public LandmarkFilter() {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+
+    /*
+        processNoise is the variance of the acceleration in (pixels / frame^2)^2,
+        measurementNoise the variance of a measured landmark in pixels^2
+    */
+    public LandmarkFilter(float processNoise, float measurementNoise) {
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+
+
+    /*
+        set the number of tracks, all tracks start over if it changes (the faces can no longer be matched by index)
+    */
+    public void setTrackNum(int trackNum) {
+        if (trackNum != this.trackNum) {
+            reset();
+            this.trackNum = trackNum;
+            while (tracks.size() < trackNum) {
+                tracks.add(new Track());
+            }
+        }
+        updatePredictable();
+    }
+
+
+
+    public int getTrackNum() {
+        return trackNum;
+    }
+
+
+
+    public void reset() {
+        for (Track track : tracks) {
+            track.initialized = false;
+            track.innovation = 0;
+        }
+        trackNum = 0;
+        predictable = false;
+    }
+
+
+
+    /*
+        predict the landmarks of a track for the next frame and correct them with the measured ones
+    */
+    public void filter(int index, ArrayList<Point> measured) {
+        Track track = tracks.get(index);
+        if (!track.initialized || track.pointNum != measured.size()) {
+            initialize(track, measured);
+            updatePredictable();
+            return;
+        }
+        predict(track);
+
+        // the gain is the same for all coordinates
+        float s = track.p00 + measurementNoise;
+        float k0 = track.p00 / s;
+        float k1 = track.p01 / s;
+        float innovationSum = 0;
+        for (int i = 0; i < track.pointNum; ++i) {
+            Point point = measured.get(i);
+            float dx = point.x - track.position[2*i];
+            float dy = point.y - track.position[2*i+1];
+            track.position[2*i] += k0 * dx;
+            track.position[2*i+1] += k0 * dy;
+            track.velocity[2*i] += k1 * dx;
+            track.velocity[2*i+1] += k1 * dy;
+            innovationSum += (float) Math.sqrt(dx*dx + dy*dy);
+        }
+        track.innovation = innovationSum / track.pointNum;
+        track.corrected = true;
+        float p01 = track.p01;
+        track.p11 -= k1 * p01;
+        track.p01 = (1 - k0) * p01;
+        track.p00 = (1 - k0) * track.p00;
+        updateLandmarks(track);
+        updatePredictable();
+    }
+
+
+
+    /*
+        move a track on by one frame without a measurement, e.g. when the landmarks could not be tracked
+    */
+    public void predict(int index) {
+        Track track = tracks.get(index);
+        if (track.initialized) {
+            predict(track);
+            updateLandmarks(track);
+        }
+    }
+
+
+
+    private void predict(Track track) {
+        for (int i = 0; i < 2*track.pointNum; ++i) {
+            track.position[i] += track.velocity[i];
+        }
+        // P = F P F^T + Q, with F = [1 1; 0 1] and Q the white acceleration noise of a one frame step
+        track.p00 += 2*track.p01 + track.p11 + processNoise / 4;
+        track.p01 += track.p11 + processNoise / 2;
+        track.p11 += processNoise;
+    }
+
+
+
+    private void initialize(Track track, ArrayList<Point> measured) {
+        track.pointNum = measured.size();
+        if (track.position.length < 2*track.pointNum) {
+            track.position = new float[2*track.pointNum];
+            track.velocity = new float[2*track.pointNum];
+        }
+        for (int i = 0; i < track.pointNum; ++i) {
+            track.position[2*i] = measured.get(i).x;
+            track.position[2*i+1] = measured.get(i).y;
+            track.velocity[2*i] = 0;
+            track.velocity[2*i+1] = 0;
+        }
+        track.p00 = measurementNoise;
+        track.p01 = 0;
+        track.p11 = INITIAL_VELOCITY_VARIANCE;
+        track.innovation = 0;
+        track.corrected = false;
+        track.initialized = true;
+        while (track.landmarks.size() < track.pointNum) {
+            track.landmarks.add(new Point());
+        }
+        while (track.landmarks.size() > track.pointNum) {
+            track.landmarks.remove(track.landmarks.size() - 1);
+        }
+        updateLandmarks(track);
+    }
+
+
+
+    private static void updateLandmarks(Track track) {
+        for (int i = 0; i < track.pointNum; ++i) {
+            track.landmarks.get(i).set(Math.round(track.position[2*i]), Math.round(track.position[2*i+1]));
+        }
+    }
+
+
+
+    /*
+        the filtered landmarks of a track, the list and its points are reused by the next filter() or predict()
+    */
+    public ArrayList<Point> getLandmarks(int index) {
+        return tracks.get(index).landmarks;
+    }
+
+
+
+    /*
+        map the filtered landmarks of a track into another coordinate space (e.g. from the detection proxy
+        to the effect resolution) from their unrounded positions, dst is resized and its points reused
+    */
+    public void getLandmarks(int index, CoordinateTransform transform, ArrayList<Point> dst) {
+        Track track = tracks.get(index);
+        while (dst.size() < track.pointNum) {
+            dst.add(new Point());
+        }
+        while (dst.size() > track.pointNum) {
+            dst.remove(dst.size() - 1);
+        }
+        for (int i = 0; i < track.pointNum; ++i) {
+            dst.get(i).set(Math.round(transform.mapX(track.position[2*i])),
+                    Math.round(transform.mapY(track.position[2*i+1])));
+        }
+    }
+
+
+
+    // mean distance in pixels between the last measured and predicted landmarks of a track
+    public float getInnovation(int index) {
+        return tracks.get(index).innovation;
+    }
+
+
+
+    /*
+        whether the motion of all tracks is predicted well, so the detection may be put off
+    */
+    public boolean isPredictable() {
+        return predictable;
+    }
+
+
+
+    private void updatePredictable() {
+        boolean res = trackNum > 0;
+        for (int i = 0; res && i < trackNum; ++i) {
+            Track track = tracks.get(i);
+            res = track.initialized && track.corrected && track.innovation <= PREDICTABLE_INNOVATION;
+        }
+        predictable = res;
+    }
+}
@@ -0,0 +1,324 @@
+package mango.whale.pipeline;
+
+import android.graphics.Point;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mango.whale.dlib.VisionDetRet;
+
+/**
+ * Landmark tracker propagating the detected landmarks from frame to frame with pyramidal Lucas-Kanade
+ * a full detection is only needed every detectionInterval frames, or as soon as too few landmarks
+ * could be tracked (see needsDetection()), in between the landmarks are tracked on the gray frames
+ * the image pyramid of a frame is built once, into buffers that are reused, and serves as the
+ * previous pyramid of the next frame: the coarse-to-fine search is run level by level here
+ * (calcOpticalFlowPyrLK with maxLevel 0 and the flow of the coarser level as the initial guess),
+ * as the Java binding of calcOpticalFlowPyrLK would otherwise rebuild both pyramids on every call
+ * seed() and track() must be called from one thread, needsDetection() may be called from any thread
+ */
+public class LandmarkTracker {
+    private static final int LEVEL_NUM = 3;
+    private static final Size WINDOW_SIZE = new Size(15, 15);
+    private static final TermCriteria CRITERIA = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 10, 0.03);
+    private static final double MIN_EIGEN_THRESHOLD = 1e-4;
+    // mean absolute difference of a tracked window, a landmark above it counts as lost
+    private static final float MAX_TRACKING_ERROR = 30;
+    // share of the landmarks that must be tracked for the tracking to be trusted
+    private static final float MIN_TRACKED_RATIO = 0.7f;
+
+    private volatile int detectionInterval;
+    private volatile int framesSinceSeed = 0;
+    private volatile boolean tracking = false;
+
+    private Mat[] prevPyramid = newPyramid();
+    private Mat[] nextPyramid = newPyramid();
+    private final MatOfPoint2f prevPts = new MatOfPoint2f();
+    private final MatOfPoint2f nextPts = new MatOfPoint2f();
+    private final MatOfByte status = new MatOfByte();
+    private final MatOfFloat err = new MatOfFloat();
+    // landmark coordinates of all faces, packed as x0, y0, x1, y1, ...
+    private float[] points = new float[0];
+    private float[] levelPoints = new float[0];
+    private float[] guess = new float[0];
+    private byte[] statusBuf = new byte[0];
+    private float[] errBuf = new float[0];
+    private int pointNum = 0;
+    private final ArrayList<ArrayList<Point>> faces = new ArrayList<>();
+    private int faceNum = 0;
+    private long trackedNum = 0;
+    private long lostNum = 0;
+
+
+
+    public LandmarkTracker(int detectionInterval) {
+        this.detectionInterval = detectionInterval;
+    }
+
+
+
+    private static Mat[] newPyramid() {
+        Mat[] pyramid = new Mat[LEVEL_NUM];
+        for (int i = 0; i < LEVEL_NUM; ++i) {
+            pyramid[i] = new Mat();
+        }
+        return pyramid;
+    }
+
+
+
+    /*
+        build the pyramid of a gray frame into reused buffers, level 0 is a copy of the frame
+        (the frame may be a view into a camera image that is closed before the next frame)
+    */
+    private static void buildPyramid(Mat gray, Mat[] pyramid) {
+        gray.copyTo(pyramid[0]);
+        for (int i = 1; i < LEVEL_NUM; ++i) {
+            Imgproc.pyrDown(pyramid[i-1], pyramid[i]);
+        }
+    }
+
+
+
+    /*
+        start tracking the landmarks of a detection on the gray frame
+    */
+    public void seed(List<VisionDetRet> detections, Mat gray) {
+        faceNum = detections.size();
+        pointNum = 0;
+        for (int f = 0; f < faceNum; ++f) {
+            pointNum += detections.get(f).getFaceLandmarks().size();
+        }
+        ensureCapacity();
+
+        int index = 0;
+        for (int f = 0; f < faceNum; ++f) {
+            ArrayList<Point> landmarks = detections.get(f).getFaceLandmarks();
+            ArrayList<Point> face = getFaceList(f);
+            // the detection's own points are left alone, the tracker moves its copies
+            while (face.size() < landmarks.size()) {
+                face.add(new Point());
+            }
+            while (face.size() > landmarks.size()) {
+                face.remove(face.size() - 1);
+            }
+            for (int i = 0; i < landmarks.size(); ++i) {
+                Point point = landmarks.get(i);
+                points[2*index] = point.x;
+                points[2*index+1] = point.y;
+                face.get(i).set(point.x, point.y);
+                ++index;
+            }
+        }
+        buildPyramid(gray, prevPyramid);
+        framesSinceSeed = 0;
+        tracking = faceNum > 0;
+    }
+
+
+
+    /*
+        move the landmarks on to the next gray frame, landmarks that are lost follow the mean motion of the others
+    */
+    public void track(Mat gray) {
+        ++framesSinceSeed;
+        if (pointNum == 0) {
+            return;
+        }
+        buildPyramid(gray, nextPyramid);
+
+        // coarsest level: the landmarks have not moved
+        float scale = 1f / (1 << (LEVEL_NUM - 1));
+        for (int i = 0; i < 2*pointNum; ++i) {
+            guess[i] = points[i] * scale;
+        }
+        for (int level = LEVEL_NUM - 1; level >= 0; --level) {
+            scale = 1f / (1 << level);
+            for (int i = 0; i < 2*pointNum; ++i) {
+                levelPoints[i] = points[i] * scale;
+            }
+            prevPts.put(0, 0, levelPoints);
+            nextPts.put(0, 0, guess);
+            Video.calcOpticalFlowPyrLK(prevPyramid[level], nextPyramid[level], prevPts, nextPts, status, err,
+                    WINDOW_SIZE, 0, CRITERIA, Video.OPTFLOW_USE_INITIAL_FLOW, MIN_EIGEN_THRESHOLD);
+            nextPts.get(0, 0, guess);
+            status.get(0, 0, statusBuf);
+            // a landmark lost on a coarse level starts from its previous position on the next one
+            for (int i = 0; i < pointNum; ++i) {
+                if (statusBuf[i] == 0) {
+                    guess[2*i] = levelPoints[2*i];
+                    guess[2*i+1] = levelPoints[2*i+1];
+                }
+            }
+            if (level > 0) {
+                for (int i = 0; i < 2*pointNum; ++i) {
+                    guess[i] *= 2;
+                }
+            }
+        }
+        err.get(0, 0, errBuf);
+
+        int tracked = 0;
+        float dx = 0;
+        float dy = 0;
+        for (int i = 0; i < pointNum; ++i) {
+            if (statusBuf[i] != 0 && errBuf[i] <= MAX_TRACKING_ERROR) {
+                dx += guess[2*i] - points[2*i];
+                dy += guess[2*i+1] - points[2*i+1];
+                ++tracked;
+            }
+            else {
+                // marked, the mean motion is only known after the loop
+                statusBuf[i] = 0;
+            }
+        }
+        if (tracked > 0) {
+            dx /= tracked;
+            dy /= tracked;
+        }
+        for (int i = 0; i < pointNum; ++i) {
+            if (statusBuf[i] != 0) {
+                points[2*i] = guess[2*i];
+                points[2*i+1] = guess[2*i+1];
+            }
+            else {
+                points[2*i] += dx;
+                points[2*i+1] += dy;
+            }
+        }
+        trackedNum += tracked;
+        lostNum += pointNum - tracked;
+        tracking = tracked >= MIN_TRACKED_RATIO * pointNum;
+        updateFaces();
+
+        Mat[] swap = prevPyramid;
+        prevPyramid = nextPyramid;
+        nextPyramid = swap;
+    }
+
+
+
+    private void ensureCapacity() {
+        if (points.length < 2*pointNum) {
+            points = new float[2*pointNum];
+            levelPoints = new float[2*pointNum];
+            guess = new float[2*pointNum];
+            statusBuf = new byte[pointNum];
+            errBuf = new float[pointNum];
+        }
+        prevPts.create(pointNum, 1, CvType.CV_32FC2);
+        nextPts.create(pointNum, 1, CvType.CV_32FC2);
+    }
+
+
+
+    private ArrayList<Point> getFaceList(int face) {
+        while (faces.size() <= face) {
+            faces.add(new ArrayList<Point>());
+        }
+        return faces.get(face);
+    }
+
+
+
+    // write the tracked coordinates into the Point objects handed out by getLandmarks()
+    private void updateFaces() {
+        int index = 0;
+        for (int f = 0; f < faceNum; ++f) {
+            ArrayList<Point> face = faces.get(f);
+            for (int i = 0; i < face.size(); ++i) {
+                face.get(i).set(Math.round(points[2*index]), Math.round(points[2*index+1]));
+                ++index;
+            }
+        }
+    }
+
+
+
+    /*
+        whether the next frame should get a full detection: no faces are tracked,
+        the tracking is not trusted any more or the detection interval is over
+    */
+    public boolean needsDetection() {
+        return !tracking || framesSinceSeed >= detectionInterval;
+    }
+
+
+
+    // whether the landmarks of the last frame are trusted
+    public boolean isTracking() {
+        return tracking;
+    }
+
+
+
+    // number of frames tracked since the last seed()
+    public int getFramesSinceSeed() {
+        return framesSinceSeed;
+    }
+
+
+
+    public void setDetectionInterval(int detectionInterval) {
+        this.detectionInterval = detectionInterval;
+    }
+
+
+
+    public int getDetectionInterval() {
+        return detectionInterval;
+    }
+
+
+
+    public int getFaceNum() {
+        return faceNum;
+    }
+
+
+
+    /*
+        the current landmarks of a face, the list and its points are reused by the next seed() or track()
+    */
+    public ArrayList<Point> getLandmarks(int face) {
+        return faces.get(face);
+    }
+
+
+
+    public long getTrackedNum() {
+        return trackedNum;
+    }
+
+
+
+    public long getLostNum() {
+        return lostNum;
+    }
+
+
+
+    public void release() {
+        for (int i = 0; i < LEVEL_NUM; ++i) {
+            prevPyramid[i].release();
+            nextPyramid[i].release();
+        }
+        prevPts.release();
+        nextPts.release();
+        status.release();
+        err.release();
+        faceNum = 0;
+        pointNum = 0;
+        tracking = false;
+    }
+}
@@ -0,0 +1,106 @@
+package mango.whale.pipeline;
+
+import org.opencv.core.Mat;
+
+import java.util.Collections;
+import java.util.List;
+
+import mango.whale.dlib.VisionDetRet;
+
+/**
+ * Most recent face detection result, shared between an asynchronous detector and the render stage
+ * every frame is rendered with the last known landmarks, as long as they are not older than maxAge,
+ * after that the effect fades out linearly over fadeTime, see getFade()
+ * the gray frame the landmarks were detected on is kept with them, so a tracker can be seeded on that frame
+ * and track the landmarks forward to the frame being rendered, instead of seeding them on a newer frame
+ * all times are camera timestamps in nanoseconds
+ */
+public class LastKnownLandmarks {
+    private final long maxAge;
+    private final long fadeTime;
+    private List<VisionDetRet> detections = Collections.emptyList();
+    // the gray frame of the detections, copied into a buffer that is reused
+    private final Mat gray = new Mat();
+    private long timestamp = Long.MIN_VALUE;
+    private long updateNum = 0;
+
+
+
+    public LastKnownLandmarks(long maxAge, long fadeTime) {
+        this.maxAge = maxAge;
+        this.fadeTime = fadeTime;
+    }
+
+
+
+    /*
+        store the result of a detection on the gray frame taken at timestamp
+        (the list is not copied, the frame is)
+    */
+    public synchronized void update(List<VisionDetRet> detections, Mat gray, long timestamp) {
+        // a detection may finish after a newer one in theory, keep the newer landmarks
+        if (timestamp < this.timestamp) {
+            return;
+        }
+        this.detections = detections;
+        gray.copyTo(this.gray);
+        this.timestamp = timestamp;
+        ++updateNum;
+    }
+
+
+
+    public synchronized List<VisionDetRet> get() {
+        return detections;
+    }
+
+
+
+    /*
+        the current landmarks, the gray frame they were detected on is copied into gray
+    */
+    public synchronized List<VisionDetRet> get(Mat gray) {
+        this.gray.copyTo(gray);
+        return detections;
+    }
+
+
+
+    public synchronized long getTimestamp() {
+        return timestamp;
+    }
+
+
+
+    /*
+        strength of the effect for a frame taken at frameTimestamp with the current landmarks:
+        1 up to maxAge, then falling linearly to 0 over fadeTime
+    */
+    public synchronized float getFade(long frameTimestamp) {
+        if (timestamp == Long.MIN_VALUE) {
+            return 0;
+        }
+        long age = frameTimestamp - timestamp;
+        if (age <= maxAge) {
+            return 1;
+        }
+        if (age >= maxAge + fadeTime) {
+            return 0;
+        }
+        return 1 - (age - maxAge) / (float) fadeTime;
+    }
+
+
+
+    public synchronized long getUpdateNum() {
+        return updateNum;
+    }
+
+
+
+    public synchronized void clear() {
+        detections = Collections.emptyList();
+        gray.release();
+        timestamp = Long.MIN_VALUE;
+    }
+}
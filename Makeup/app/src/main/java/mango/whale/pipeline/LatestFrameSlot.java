@@ -0,0 +1,78 @@
+package mango.whale.pipeline;
+
+import org.opencv.core.Mat;
+
+/**
+ * Single-slot mailbox handing the most recent gray frame to an asynchronous detector
+ * offer() copies the frame into the pending buffer (overwriting a frame the detector has not taken yet,
+ * which is counted as a drop), take() swaps the pending and the working buffer,
+ * so the producer never waits for the detector and the two buffers are reused forever
+ */
+public class LatestFrameSlot {
+    private Mat pending = new Mat();
+    private Mat working = new Mat();
+    private long pendingTimestamp = 0;
+    private long workingTimestamp = 0;
+    private boolean hasPending = false;
+    private long offerNum = 0;
+    private long dropNum = 0;
+
+
+
+    /*
+        copy a frame into the slot, timestamp is the camera timestamp of the frame
+    */
+    public synchronized void offer(Mat gray, long timestamp) {
+        if (hasPending) {
+            ++dropNum;
+        }
+        gray.copyTo(pending);
+        pendingTimestamp = timestamp;
+        hasPending = true;
+        ++offerNum;
+        notifyAll();
+    }
+
+
+
+    /*
+        wait for a frame newer than the last one taken, it stays valid until the next take()
+        (only one consumer thread may take frames)
+    */
+    public synchronized Mat take() throws InterruptedException {
+        while (!hasPending) {
+            wait();
+        }
+        Mat taken = pending;
+        pending = working;
+        working = taken;
+        workingTimestamp = pendingTimestamp;
+        hasPending = false;
+        return working;
+    }
+
+
+
+    // camera timestamp of the frame returned by the last take()
+    public synchronized long getTimestamp() {
+        return workingTimestamp;
+    }
+
+
+    public synchronized long getOfferNum() {
+        return offerNum;
+    }
+
+
+    // number of frames overwritten before the detector got to them
+    public synchronized long getDropNum() {
+        return dropNum;
+    }
+
+
+    public synchronized void release() {
+        pending.release();
+        working.release();
+        hasPending = false;
+    }
+}
@@ -0,0 +1,70 @@
+package mango.whale.pipeline;
+
+/**
+ * A pipeline stage running on its own thread
+ * the stage takes items from its input queue one at a time and process()es them,
+ * handing the results on to the next stage's queue, so all stages work on different frames at once
+ * and the throughput is bound by the slowest stage instead of the sum of all of them
+ */
+public abstract class PipelineStage<T> extends Thread {
+    private final DropOldestQueue<T> input;
+    private volatile long processedNum = 0;
+
+
+
+    protected PipelineStage(String name, DropOldestQueue<T> input) {
+        super(name);
+        this.input = input;
+    }
+
+
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            T item;
+            try {
+                item = input.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            process(item);
+            ++processedNum;
+        }
+    }
+
+
+
+    /*
+        process one item, the stage owns the item from now on (it has to pass it on or give it back)
+    */
+    protected abstract void process(T item);
+
+
+
+    /*
+        stop the stage after the current item, waiting items stay in the input queue
+    */
+    public void quit() {
+        interrupt();
+    }
+
+
+
+    public DropOldestQueue<T> getInput() {
+        return input;
+    }
+
+
+
+    // number of frames the stage dropped because it was busy when newer ones arrived
+    public long getDropNum() {
+        return input.getDropNum();
+    }
+
+
+
+    public long getProcessedNum() {
+        return processedNum;
+    }
+}
@@ -0,0 +1,217 @@
+package mango.whale.pipeline;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import mango.whale.face.Feature;
+
+/**
+ * Holds a target frame time by walking a ladder of quality levels
+ * the stages on the path of a frame report how long they took, the slowest stage (averaged over recent frames)
+ * bounds the frame rate of the pipeline, as the stages run in parallel
+ * every stage is held to a budget, the target frame time unless set otherwise (e.g. the asynchronous detection
+ * runs beside the frame path and may take several frames), and the load is the largest ratio of a stage time
+ * to its budget
+ * the governor steps one level down the ladder (cheaper) when the load stays above 1
+ * and one level up when it stays well below it, with hysteresis: a step down needs DOWN_FRAME_NUM frames
+ * over budget, a step up UP_FRAME_NUM frames under UP_RATIO of it, and no step follows within
+ * COOLDOWN_FRAME_NUM frames of the last one, so the levels do not oscillate
+ * record() may be called from any thread, update() from one thread
+ */
+public class QualityGovernor {
+    private static final int DOWN_FRAME_NUM = 10;
+    private static final int UP_FRAME_NUM = 60;
+    private static final float UP_RATIO = 0.7f;
+    private static final int COOLDOWN_FRAME_NUM = 30;
+    // weight of a new frame time in the moving average of a stage
+    private static final float AVERAGE_WEIGHT = 0.1f;
+
+    public enum Stage {
+        INGEST,
+        DETECT,
+        RENDER,
+        PRESENT,
+        // detection beside the frame path (the frames are rendered with the last known landmarks meanwhile)
+        ASYNC_DETECT
+    }
+
+    /*
+        the settings of the quality levers at one level of the ladder
+    */
+    public static final class Level {
+        // a full detection at least every detectionInterval frames
+        public final int detectionInterval;
+        // the detector runs on the detection proxy scaled by detectionScale
+        public final float detectionScale;
+        public final int maxEffectNum;
+        public final Feature.FeatherMode featherMode;
+        public final int maxFaceNum;
+
+        public Level(int detectionInterval, float detectionScale, int maxEffectNum,
+                     Feature.FeatherMode featherMode, int maxFaceNum) {
+            this.detectionInterval = detectionInterval;
+            this.detectionScale = detectionScale;
+            this.maxEffectNum = maxEffectNum;
+            this.featherMode = featherMode;
+            this.maxFaceNum = maxFaceNum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "interval %d, detection scale %.2f, effects %d, feather %s, faces %d",
+                    detectionInterval, detectionScale, maxEffectNum, featherMode, maxFaceNum);
+        }
+    }
+
+    private final Level[] ladder;
+    // moving average of every stage in nanoseconds, 0 until the stage reported its first frame
+    private final float[] stageTimes = new float[Stage.values().length];
+    // budget of every stage in nanoseconds
+    private final long[] stageBudgets = new long[Stage.values().length];
+    private volatile int level = 0;
+    private int overNum = 0;
+    private int underNum = 0;
+    private int cooldownNum = 0;
+    private long changeNum = 0;
+
+
+
+    /*
+        ladder[0] is the best quality, targetFrameTime is in nanoseconds
+    */
+    public QualityGovernor(Level[] ladder, long targetFrameTime) {
+        if (ladder.length == 0) {
+            throw new IllegalArgumentException("the quality ladder is empty");
+        }
+        this.ladder = ladder.clone();
+        Arrays.fill(stageBudgets, targetFrameTime);
+    }
+
+
+
+    /*
+        hold a stage to another budget than the target frame time, in nanoseconds
+    */
+    public void setStageBudget(Stage stage, long budget) {
+        synchronized (stageTimes) {
+            stageBudgets[stage.ordinal()] = budget;
+        }
+    }
+
+
+
+    /*
+        report the time a stage took for one frame, in nanoseconds
+    */
+    public void record(Stage stage, long time) {
+        synchronized (stageTimes) {
+            float average = stageTimes[stage.ordinal()];
+            stageTimes[stage.ordinal()] = average == 0 ? time : average + AVERAGE_WEIGHT * (time - average);
+        }
+    }
+
+
+
+    /*
+        take one frame into account, returns whether the level changed
+    */
+    public boolean update() {
+        float load = getLoad();
+        if (cooldownNum > 0) {
+            --cooldownNum;
+            return false;
+        }
+        if (load > 1) {
+            ++overNum;
+            underNum = 0;
+        }
+        else if (load < UP_RATIO) {
+            ++underNum;
+            overNum = 0;
+        }
+        else {
+            overNum = 0;
+            underNum = 0;
+        }
+
+        int next = level;
+        if (overNum >= DOWN_FRAME_NUM && level < ladder.length - 1) {
+            next = level + 1;
+        }
+        else if (underNum >= UP_FRAME_NUM && level > 0) {
+            next = level - 1;
+        }
+        if (next == level) {
+            return false;
+        }
+        level = next;
+        overNum = 0;
+        underNum = 0;
+        cooldownNum = COOLDOWN_FRAME_NUM;
+        ++changeNum;
+        return true;
+    }
+
+
+
+    /*
+        moving average of the slowest stage in nanoseconds
+    */
+    public float getFrameTime() {
+        float res = 0;
+        synchronized (stageTimes) {
+            for (float time : stageTimes) {
+                res = Math.max(res, time);
+            }
+        }
+        return res;
+    }
+
+
+
+    /*
+        the largest ratio of the moving average of a stage to its budget, above 1 the pipeline falls behind
+    */
+    public float getLoad() {
+        float res = 0;
+        synchronized (stageTimes) {
+            for (int i = 0; i < stageTimes.length; ++i) {
+                res = Math.max(res, stageTimes[i] / stageBudgets[i]);
+            }
+        }
+        return res;
+    }
+
+
+
+    public float getStageTime(Stage stage) {
+        synchronized (stageTimes) {
+            return stageTimes[stage.ordinal()];
+        }
+    }
+
+
+
+    // index of the current level in the ladder, 0 is the best quality
+    public int getLevelIndex() {
+        return level;
+    }
+
+
+
+    public Level getLevel() {
+        return ladder[level];
+    }
+
+
+
+    public int getLevelNum() {
+        return ladder.length;
+    }
+
+
+
+    public long getChangeNum() {
+        return changeNum;
+    }
+}
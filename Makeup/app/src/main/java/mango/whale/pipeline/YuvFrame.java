@@ -0,0 +1,178 @@
+package mango.whale.pipeline;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Zero-copy view of a YUV_420_888 camera image
+ * the luma plane is the gray image face detection runs on, it is wrapped in place (honoring the row stride),
+ * so detection can start without any copy or color conversion
+ * the chroma planes are only read when RGBA pixels are actually needed, see toRGBA()
+ * the views point into the Image's buffers, they are only valid until the image is closed or the next wrap()
+ */
+public class YuvFrame {
+    private int width;
+    private int height;
+    private final List<Mat> views = new ArrayList<>();
+    private Mat gray;
+    // two-channel chroma (UV or VU interleaved) of the frame
+    private Mat chroma;
+    private int chromaCode;
+    private Mat uPlane;
+    private Mat vPlane;
+    // interleaved copy of planar (pixel stride 1) chroma, reused from frame to frame
+    private final Mat mergedChroma = new Mat();
+    private final List<Mat> chromaPlanes = new ArrayList<>(2);
+
+
+
+    /*
+        wrap the planes of a YUV_420_888 image, releasing the views of the previous one
+    */
+    public void wrap(Image image) {
+        release();
+        width = image.getWidth();
+        height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+
+        gray = wrapPlane(planes[0], height, width, 1);
+
+        if (planes[1].getPixelStride() == 2) {
+            // semi-planar: the U and V planes are the same interleaved memory one byte apart,
+            // whichever starts first is the two-channel chroma plane
+            Mat u = wrapPlane(planes[1], height/2, width/2, 2);
+            Mat v = wrapPlane(planes[2], height/2, width/2, 2);
+            if (v.dataAddr() > u.dataAddr()) {
+                chroma = u;
+                chromaCode = Imgproc.COLOR_YUV2RGBA_NV12;
+            }
+            else {
+                chroma = v;
+                chromaCode = Imgproc.COLOR_YUV2RGBA_NV21;
+            }
+            uPlane = null;
+            vPlane = null;
+        }
+        else {
+            // planar: the chroma is interleaved into mergedChroma when it is needed
+            uPlane = wrapPlane(planes[1], height/2, width/2, 1);
+            vPlane = wrapPlane(planes[2], height/2, width/2, 1);
+            chroma = null;
+            chromaCode = Imgproc.COLOR_YUV2RGBA_NV12;
+        }
+    }
+
+
+
+    /*
+        wrap rows x cols pixels of a plane without copying, the rows are rowStride bytes apart
+    */
+    private Mat wrapPlane(Image.Plane plane, int rows, int cols, int channelNum) {
+        Mat wrapped = new Mat(rows, plane.getRowStride() / channelNum, CvType.CV_8UC(channelNum), plane.getBuffer());
+        Mat view = wrapped.submat(0, rows, 0, cols);
+        views.add(wrapped);
+        views.add(view);
+        return view;
+    }
+
+
+
+    /*
+        the luma plane, i.e. the gray image, without any copy
+    */
+    public Mat gray() {
+        return gray;
+    }
+
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+
+    /*
+        convert the frame into an RGBA Mat (CV_8UC4, width x height)
+    */
+    public void toRGBA(Mat imageRGBA) {
+        if (chroma == null) {
+            chromaPlanes.clear();
+            chromaPlanes.add(uPlane);
+            chromaPlanes.add(vPlane);
+            Core.merge(chromaPlanes, mergedChroma);
+            chromaPlanes.clear();
+            Imgproc.cvtColorTwoPlane(gray, mergedChroma, imageRGBA, chromaCode);
+        }
+        else {
+            Imgproc.cvtColorTwoPlane(gray, chroma, imageRGBA, chromaCode);
+        }
+    }
+
+
+
+    /*
+        convert only a region of the frame into the same region of a full-size RGBA Mat
+        the region is grown to even coordinates (the chroma has half the resolution), so a few more pixels may be written
+    */
+    public void toRGBA(Rect roi, Mat imageRGBA) {
+        int left = Math.max(roi.left, 0) & ~1;
+        int top = Math.max(roi.top, 0) & ~1;
+        int right = Math.min((roi.right + 1) & ~1, width & ~1);
+        int bottom = Math.min((roi.bottom + 1) & ~1, height & ~1);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        Mat lumaRoi = gray.submat(top, bottom, left, right);
+        Mat rgbaRoi = imageRGBA.submat(top, bottom, left, right);
+        if (chroma == null) {
+            Mat uRoi = uPlane.submat(top/2, bottom/2, left/2, right/2);
+            Mat vRoi = vPlane.submat(top/2, bottom/2, left/2, right/2);
+            chromaPlanes.clear();
+            chromaPlanes.add(uRoi);
+            chromaPlanes.add(vRoi);
+            Core.merge(chromaPlanes, mergedChroma);
+            chromaPlanes.clear();
+            Imgproc.cvtColorTwoPlane(lumaRoi, mergedChroma, rgbaRoi, chromaCode);
+            uRoi.release();
+            vRoi.release();
+        }
+        else {
+            Mat chromaRoi = chroma.submat(top/2, bottom/2, left/2, right/2);
+            Imgproc.cvtColorTwoPlane(lumaRoi, chromaRoi, rgbaRoi, chromaCode);
+            chromaRoi.release();
+        }
+        lumaRoi.release();
+        rgbaRoi.release();
+    }
+
+
+
+    /*
+        release the views into the image's buffers, call before the image is closed
+    */
+    public void release() {
+        for (Mat view : views) {
+            view.release();
+        }
+        views.clear();
+        gray = null;
+        chroma = null;
+        uPlane = null;
+        vPlane = null;
+    }
+}
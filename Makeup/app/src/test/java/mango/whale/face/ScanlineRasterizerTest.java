@@ -0,0 +1,102 @@
+package mango.whale.face;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the scanline rasterizer (pixel centers at integer coordinates)
+ */
+public class ScanlineRasterizerTest {
+    private static final int ROWS = 12;
+    private static final int COLS = 12;
+
+    // the square with corners at the pixel centers (2, 2) and (8, 8)
+    private static final int[] SQUARE = {2, 2, 8, 2, 8, 8, 2, 8};
+
+
+    private static int alpha(byte[] mask, int x, int y) {
+        return mask[y*COLS+x] & 0xff;
+    }
+
+
+    @Test
+    public void square_coversItsPixels() throws Exception {
+        byte[] mask = new ScanlineRasterizer().rasterize(ROWS, COLS, SQUARE, new int[]{4}, 0, 1);
+
+        assertEquals(255, alpha(mask, 5, 5));
+        assertEquals(255, alpha(mask, 3, 7));
+        assertEquals(0, alpha(mask, 0, 0));
+        assertEquals(0, alpha(mask, 9, 5));
+        assertEquals(0, alpha(mask, 5, 9));
+        // the edges run through the pixel centers, so half of the border pixels is covered
+        assertEquals(128, alpha(mask, 2, 5));
+        assertEquals(128, alpha(mask, 8, 5));
+        assertEquals(128, alpha(mask, 5, 2));
+        assertEquals(128, alpha(mask, 5, 8));
+        assertEquals(64, alpha(mask, 2, 2));
+    }
+
+
+    @Test
+    public void innerContour_cutsAHole() throws Exception {
+        int[] points = {0, 0, 11, 0, 11, 11, 0, 11, 3, 3, 8, 3, 8, 8, 3, 8};
+        byte[] mask = new ScanlineRasterizer().rasterize(ROWS, COLS, points, new int[]{4, 8}, 0, 2);
+
+        assertEquals(255, alpha(mask, 1, 1));
+        assertEquals(255, alpha(mask, 10, 6));
+        assertEquals(0, alpha(mask, 5, 5));
+        assertEquals(128, alpha(mask, 3, 5));
+    }
+
+
+    @Test
+    public void contourRange_selectsTheContours() throws Exception {
+        int[] points = {0, 0, 11, 0, 11, 11, 0, 11, 3, 3, 8, 3, 8, 8, 3, 8};
+        byte[] mask = new ScanlineRasterizer().rasterize(ROWS, COLS, points, new int[]{4, 8}, 1, 2);
+
+        assertEquals(0, alpha(mask, 1, 1));
+        assertEquals(255, alpha(mask, 5, 5));
+    }
+
+
+    @Test
+    public void hull_fillsConcavities() throws Exception {
+        // an L shape inside the square, with a point in its middle
+        int[] points = {2, 2, 8, 2, 8, 4, 4, 4, 4, 8, 2, 8, 3, 3};
+        ScanlineRasterizer rasterizer = new ScanlineRasterizer();
+        byte[] polygon = rasterizer.rasterize(ROWS, COLS, points, new int[]{6}, 0, 1).clone();
+        assertEquals(0, alpha(polygon, 6, 6));
+
+        byte[] hull = rasterizer.rasterizeHull(ROWS, COLS, points, 7);
+        assertEquals(255, alpha(hull, 5, 5));
+        assertEquals(0, alpha(hull, 7, 7));
+        assertEquals(0, alpha(hull, 9, 9));
+    }
+
+
+    @Test
+    public void hull_ofASquareIsTheSquare() throws Exception {
+        int[] points = {5, 5, 2, 2, 8, 8, 2, 8, 8, 2, 5, 2};
+        ScanlineRasterizer rasterizer = new ScanlineRasterizer();
+        byte[] square = rasterizer.rasterize(ROWS, COLS, SQUARE, new int[]{4}, 0, 1).clone();
+        byte[] hull = rasterizer.rasterizeHull(ROWS, COLS, points, 6);
+
+        for (int i = 0; i < ROWS * COLS; ++i) {
+            assertEquals(square[i], hull[i]);
+        }
+    }
+
+
+    @Test
+    public void buffer_isClearedBetweenCalls() throws Exception {
+        ScanlineRasterizer rasterizer = new ScanlineRasterizer();
+        rasterizer.rasterize(ROWS, COLS, SQUARE, new int[]{4}, 0, 1);
+        // fewer than 3 points give an empty mask
+        byte[] mask = rasterizer.rasterize(ROWS, COLS, new int[]{2, 2, 8, 8}, new int[]{2}, 0, 1);
+
+        for (int i = 0; i < ROWS * COLS; ++i) {
+            assertEquals(0, mask[i]);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package mango.whale.pipeline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the drop-oldest hand-off queue
+ */
+public class DropOldestQueueTest {
+    private final List<Integer> dropped = new ArrayList<>();
+    private final DropOldestQueue.DropHandler<Integer> dropHandler = new DropOldestQueue.DropHandler<Integer>() {
+        @Override
+        public void onDrop(Integer item) {
+            dropped.add(item);
+        }
+    };
+
+
+    @Test
+    public void put_dropsTheOldestItem() throws Exception {
+        DropOldestQueue<Integer> queue = new DropOldestQueue<>(2, dropHandler);
+        queue.put(1);
+        queue.put(2);
+        assertTrue(dropped.isEmpty());
+        queue.put(3);
+        queue.put(4);
+
+        assertEquals(2, queue.size());
+        assertEquals(4, queue.getPutNum());
+        assertEquals(2, queue.getDropNum());
+        assertEquals(2, dropped.size());
+        assertEquals(1, (int) dropped.get(0));
+        assertEquals(2, (int) dropped.get(1));
+        assertEquals(3, (int) queue.take());
+        assertEquals(4, (int) queue.take());
+    }
+
+
+    @Test
+    public void clear_handsTheItemsBackWithoutCountingDrops() throws Exception {
+        DropOldestQueue<Integer> queue = new DropOldestQueue<>(3, dropHandler);
+        queue.put(1);
+        queue.put(2);
+        queue.clear();
+
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getDropNum());
+        assertEquals(2, dropped.size());
+        assertEquals(1, (int) dropped.get(0));
+    }
+
+
+    @Test
+    public void take_waitsForAnItem() throws Exception {
+        final DropOldestQueue<Integer> queue = new DropOldestQueue<>(1, dropHandler);
+        final int[] taken = {0};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = queue.take();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        assertTrue(consumer.isAlive());
+
+        queue.put(7);
+        consumer.join(1000);
+        assertFalse(consumer.isAlive());
+        assertEquals(7, taken[0]);
+    }
+}
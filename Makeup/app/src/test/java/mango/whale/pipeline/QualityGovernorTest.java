@@ -0,0 +1,134 @@
+package mango.whale.pipeline;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import mango.whale.face.Feature;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of the quality governor: a step down needs 10 frames over the target, a step up 60 frames
+ * under 70% of it, and no step follows within 30 frames of the last one
+ */
+public class QualityGovernorTest {
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(5);
+    // between 70% of the target and the target
+    private static final long BAND = TimeUnit.MILLISECONDS.toNanos(8);
+    private static final QualityGovernor.Level[] LADDER = {
+            new QualityGovernor.Level(5, 1f, 2, Feature.FeatherMode.GAUSSIAN, 4),
+            new QualityGovernor.Level(10, 0.75f, 1, Feature.FeatherMode.DISTANCE, 2),
+            new QualityGovernor.Level(15, 0.5f, 1, Feature.FeatherMode.DISTANCE, 1)
+    };
+
+
+    /*
+        let the moving average of the DETECT stage settle at time, then take frameNum frames of that time into account,
+        returns the number of level changes
+    */
+    private static int run(QualityGovernor governor, long time, int frameNum) {
+        return run(governor, QualityGovernor.Stage.DETECT, time, frameNum);
+    }
+
+
+    private static int run(QualityGovernor governor, QualityGovernor.Stage stage, long time, int frameNum) {
+        for (int i = 0; i < 200; ++i) {
+            governor.record(stage, time);
+        }
+        int changeNum = 0;
+        for (int i = 0; i < frameNum; ++i) {
+            governor.record(stage, time);
+            if (governor.update()) {
+                ++changeNum;
+            }
+        }
+        return changeNum;
+    }
+
+
+    @Test
+    public void slowFrames_stepDownAfterTheCooldown() throws Exception {
+        QualityGovernor governor = new QualityGovernor(LADDER, TARGET);
+        assertEquals(0, run(governor, SLOW, 9));
+        assertEquals(1, run(governor, SLOW, 1));
+        assertEquals(1, governor.getLevelIndex());
+        assertSame(LADDER[1].featherMode, governor.getLevel().featherMode);
+
+        // 30 frames of cooldown, then 10 frames over the target again
+        assertEquals(0, run(governor, SLOW, 39));
+        assertEquals(1, run(governor, SLOW, 1));
+        assertEquals(2, governor.getLevelIndex());
+        // the last level is the floor
+        assertEquals(0, run(governor, SLOW, 200));
+        assertEquals(2, governor.getLevelIndex());
+        assertEquals(2, governor.getChangeNum());
+    }
+
+
+    @Test
+    public void fastFrames_stepUp() throws Exception {
+        QualityGovernor governor = new QualityGovernor(LADDER, TARGET);
+        assertEquals(1, run(governor, SLOW, 10));
+
+        assertEquals(0, run(governor, FAST, 30 + 59));
+        assertEquals(1, run(governor, FAST, 1));
+        assertEquals(0, governor.getLevelIndex());
+        // the first level is the ceiling
+        assertEquals(0, run(governor, FAST, 200));
+    }
+
+
+    @Test
+    public void framesInTheBand_keepTheLevel() throws Exception {
+        QualityGovernor governor = new QualityGovernor(LADDER, TARGET);
+        assertEquals(1, run(governor, SLOW, 10));
+        assertEquals(0, run(governor, BAND, 500));
+        assertEquals(1, governor.getLevelIndex());
+    }
+
+
+    @Test
+    public void interruptedSlowFrames_doNotStepDown() throws Exception {
+        QualityGovernor governor = new QualityGovernor(LADDER, TARGET);
+        assertEquals(0, run(governor, SLOW, 9));
+        assertEquals(0, run(governor, BAND, 1));
+        assertEquals(0, run(governor, SLOW, 9));
+        assertEquals(0, governor.getLevelIndex());
+    }
+
+
+    @Test
+    public void frameTime_isTheSlowestStageAverage() throws Exception {
+        QualityGovernor governor = new QualityGovernor(LADDER, TARGET);
+        assertEquals(0, governor.getFrameTime(), 0);
+        governor.record(QualityGovernor.Stage.RENDER, 1000);
+        governor.record(QualityGovernor.Stage.RENDER, 2000);
+        governor.record(QualityGovernor.Stage.DETECT, 500);
+
+        assertEquals(1100, governor.getStageTime(QualityGovernor.Stage.RENDER), 1e-3);
+        assertEquals(1100, governor.getFrameTime(), 1e-3);
+    }
+
+
+    @Test
+    public void stageBudget_scalesTheLoad() throws Exception {
+        QualityGovernor governor = new QualityGovernor(LADDER, TARGET);
+        governor.setStageBudget(QualityGovernor.Stage.ASYNC_DETECT, 3 * TARGET);
+        governor.record(QualityGovernor.Stage.RENDER, FAST);
+        governor.record(QualityGovernor.Stage.ASYNC_DETECT, SLOW);
+        assertEquals(2 / 3f, governor.getLoad(), 1e-3);
+
+        // a detection within its budget keeps the level, a slower one steps down
+        assertEquals(0, run(governor, QualityGovernor.Stage.ASYNC_DETECT, 2 * TARGET, 100));
+        assertEquals(1, run(governor, QualityGovernor.Stage.ASYNC_DETECT, 4 * TARGET, 10));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyLadder_isRejected() throws Exception {
+        new QualityGovernor(new QualityGovernor.Level[0], TARGET);
+    }
+}
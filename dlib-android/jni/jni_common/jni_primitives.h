@@ -16,6 +16,18 @@
 #define CONSTSIG_VISION_DET_RET "()V"
 
 #define CLASSNAME_FACE_DET "mango/whale/dlib/FaceDet"
+
+// Layout of a face in the direct result buffer of FaceDet, in ints (keep in sync with FaceDet.RESULT_*)
+// left, top, right, bottom, score (float bits), landmark number, then x0, y0, x1, y1, ...
+#define DET_RESULT_LEFT 0
+#define DET_RESULT_TOP 1
+#define DET_RESULT_RIGHT 2
+#define DET_RESULT_BOTTOM 3
+#define DET_RESULT_SCORE 4
+#define DET_RESULT_LANDMARK_NUM 5
+#define DET_RESULT_LANDMARKS 6
+#define DET_RESULT_MAX_LANDMARK_NUM 68
+#define DET_RESULT_STRIDE (DET_RESULT_LANDMARKS + 2 * DET_RESULT_MAX_LANDMARK_NUM)
 #define CLASSNAME_PEDESTRIAN_DET "mango/whale/dlib/PedestrianDet"
 
 
@@ -18,7 +18,9 @@
 #include <dlib/image_loader/load_image.h>
 #include <glog/logging.h>
 #include <jni.h>
+#include <map>
 #include <memory>
+#include <mutex>
 #include <opencv2/core/core.hpp>
 #include <opencv2/highgui/highgui.hpp>
 #include <opencv2/imgproc/imgproc.hpp>
@@ -33,6 +35,22 @@
 using namespace dlib;
 using namespace std;
 
+/*	the landmark model is loaded once per path and shared read-only by all face detectors
+	(shape_predictor::operator() is const), it is freed with the last detector using it */
+inline std::shared_ptr<const dlib::shape_predictor> loadShapePredictor(const std::string& path) {
+  static std::mutex sLock;
+  static std::map<std::string, std::weak_ptr<const dlib::shape_predictor>> sModels;
+  std::lock_guard<std::mutex> lock(sLock);
+  std::shared_ptr<const dlib::shape_predictor> model = sModels[path].lock();
+  if (!model) {
+    std::shared_ptr<dlib::shape_predictor> loaded = std::make_shared<dlib::shape_predictor>();
+    dlib::deserialize(path) >> *loaded;
+    LOG(INFO) << "Load landmarkmodel from " << path;
+    model = loaded;
+    sModels[path] = model;
+  }
+  return model;
+}
 
 class OpencvHOGDetctor {
  public:
@@ -155,7 +173,9 @@ class DLibHOGDetector {
 
 
 /* 	the function is re-written by You Lyu in 2018/8/10 to improve processing efficiency
-	opencv classifier is used instead as it gives faster face landmarks extraction speed */
+	opencv classifier is used instead as it gives faster face landmarks extraction speed
+	the results (mRets, mFaceShapeMap) and the cascade classifier are per detector, so one detector
+	must only be used by one thread at a time, the landmark model is shared (see loadShapePredictor()) */
 class DLibHOGFaceDetector : public DLibHOGDetector {
  protected:
   std::vector<cv::Rect> mRets;
@@ -163,9 +183,76 @@ class DLibHOGFaceDetector : public DLibHOGDetector {
   std::string mLandMarkModel;
   std::string mClassifier;
   cv::CascadeClassifier face_cascade;
-  dlib::shape_predictor msp;
+  std::shared_ptr<const dlib::shape_predictor> msp;
   std::unordered_map<int, dlib::full_object_detection> mFaceShapeMap;
   dlib::frontal_face_detector mFaceDetector;
+  int mBoxSource = BOX_CASCADE;
+  long mPriorHitNum = 0;
+
+  // the prior window is the prior box grown by this share of its size on every side
+  static constexpr float PRIOR_MARGIN = 0.5f;
+  // the face sizes searched around a prior, relative to the size of the prior
+  static constexpr float PRIOR_MIN_SCALE = 0.6f;
+  static constexpr float PRIOR_MAX_SCALE = 1.6f;
+  // finer than the full-frame search, the window only holds a few scales
+  static constexpr double PRIOR_SCALE_FACTOR = 1.1;
+
+  /*	search the window around the prior box for faces of about its size, the results are in frame coordinates */
+  inline void detectAround(const cv::Mat& image, const cv::Rect& prior) {
+    int marginX = (int)(prior.width * PRIOR_MARGIN);
+    int marginY = (int)(prior.height * PRIOR_MARGIN);
+    cv::Rect window = cv::Rect(prior.x - marginX, prior.y - marginY,
+                               prior.width + 2 * marginX, prior.height + 2 * marginY)
+                      & cv::Rect(0, 0, image.cols, image.rows);
+    int size = std::max(prior.width, prior.height);
+    int minSize = std::max((int)(size * PRIOR_MIN_SCALE), 20);
+    int maxSize = std::min((int)(size * PRIOR_MAX_SCALE), std::min(window.width, window.height));
+    if (maxSize < minSize) {
+      return;
+    }
+    if (mBoxSource == BOX_HOG) {
+      detectHOG(image(window), window.tl());
+      return;
+    }
+    face_cascade.detectMultiScale(image(window), mRets, PRIOR_SCALE_FACTOR, 2, 0|CV_HAAR_FIND_BIGGEST_OBJECT,
+                                  cv::Size(minSize, minSize), cv::Size(maxSize, maxSize));
+    for (size_t i = 0; i < mRets.size(); ++i) {
+      mRets[i].x += window.x;
+      mRets[i].y += window.y;
+    }
+  }
+
+  /*	dlib's HOG frontal face detector (all faces, not only the biggest one), the results are appended
+	to mRets, offset by the origin of the searched image in the frame */
+  inline void detectHOG(const cv::Mat& image, const cv::Point& offset) {
+    dlib::cv_image<uchar> img(image);
+    std::vector<dlib::rectangle> dets = mFaceDetector(img);
+    for (size_t i = 0; i < dets.size(); ++i) {
+      mRets.push_back(cv::Rect(dets[i].left() + offset.x, dets[i].top() + offset.y,
+                               dets[i].width(), dets[i].height()));
+    }
+  }
+
+  /*	fit the landmarks of every face box in mRets */
+  inline void predictShapes(const cv::Mat& image) {
+	dlib::cv_image<uchar> img(image);
+	LOG(INFO) << "get image";
+    mFaceShapeMap.clear();
+    // Process shape
+    if (mRets.size() != 0 && msp) {
+      for (unsigned long j = 0; j < mRets.size(); ++j) {
+		dlib::rectangle det;
+		det.set_left(mRets[j].x);
+        det.set_top(mRets[j].y);
+        det.set_right(mRets[j].x+mRets[j].width);
+        det.set_bottom(mRets[j].y+mRets[j].height);
+        dlib::full_object_detection shape = (*msp)(img, det);
+        LOG(INFO) << "face index:" << j
+                  << " number of parts: " << shape.num_parts();
+        mFaceShapeMap[j] = shape;
+      }
+    }
+  }
 
   inline void init() {
     LOG(INFO) << "Init mFaceDetector";
@@ -173,6 +260,10 @@ class DLibHOGFaceDetector : public DLibHOGDetector {
   }
 
  public:
+  // where the face boxes come from, the landmarks are always fitted by the shape predictor
+  static const int BOX_CASCADE = 0;
+  static const int BOX_HOG = 1;
+
   DLibHOGFaceDetector() { init(); }
 
   DLibHOGFaceDetector(const std::string& landmarkmodel, const std::string& classifier)
@@ -181,8 +272,7 @@ class DLibHOGFaceDetector : public DLibHOGDetector {
     if (!mLandMarkModel.empty() && jniutils::fileExists(mLandMarkModel) &&
 		!mClassifier.empty() && jniutils::fileExists(mClassifier)) {
       face_cascade.load(classifier);
-      dlib::deserialize(mLandMarkModel) >> msp;
-      LOG(INFO) << "Load landmarkmodel from " << mLandMarkModel;
+      msp = loadShapePredictor(mLandMarkModel);
     }
 	else {
       LOG(INFO) << "Landmark or classifer model not found";
@@ -200,6 +290,12 @@ class DLibHOGFaceDetector : public DLibHOGDetector {
   // ARGB
   /* this function is re-written by You Lyu in 2018/08/10 to improve processing efficiency */	
   virtual inline int det(const cv::Mat& image) {
+    return det(image, cv::Rect());
+  }
+
+  /*	prior is the face box of the previous frame (empty if there is none): the cascade only searches
+	a window around it, for faces of about its size, and the whole frame only if nothing is found there */
+  inline int det(const cv::Mat& image, const cv::Rect& prior) {
     if (image.empty())
       return 0;
     LOG(INFO) << "com_tzutalin_dlib_PeopleDet go to det(mat)";
@@ -210,35 +306,46 @@ class DLibHOGFaceDetector : public DLibHOGDetector {
 	clock_t curr = clock();
 //================================================================================================================	
 	//cv::equalizeHist(img, img);
-	face_cascade.detectMultiScale(image, mRets, 1.2, 2, 0|CV_HAAR_FIND_BIGGEST_OBJECT, cv::Size(20, 20));
+	mRets.clear();
+	if (prior.area() > 0) {
+	  detectAround(image, prior);
+	}
+	if (mRets.empty() && mBoxSource == BOX_HOG) {
+	  detectHOG(image, cv::Point(0, 0));
+	}
+	else if (mRets.empty()) {
+	  face_cascade.detectMultiScale(image, mRets, 1.2, 2, 0|CV_HAAR_FIND_BIGGEST_OBJECT, cv::Size(20, 20));
+	}
+	else {
+	  ++mPriorHitNum;
+	}
 //================================================================================================================	
 	LOG(INFO) << "interval 10: " << clock() - curr;
 	curr = clock();
 	LOG(INFO) << "Dlib HOG face det size : " << mRets.size();
-	dlib::cv_image<uchar> img(image);
-	LOG(INFO) << "get image";
-    mFaceShapeMap.clear();
-    // Process shape
-    if (mRets.size() != 0 && mLandMarkModel.empty() == false) {
-      for (unsigned long j = 0; j < mRets.size(); ++j) {
-		dlib::rectangle det;
-		det.set_left(mRets[j].x);
-        det.set_top(mRets[j].y);
-        det.set_right(mRets[j].x+mRets[j].width);
-        det.set_bottom(mRets[j].y+mRets[j].height);
-        dlib::full_object_detection shape = msp(img, det);
-        LOG(INFO) << "face index:" << j
-                  << " number of parts: " << shape.num_parts();
-        mFaceShapeMap[j] = shape;
-      }
-    }
+	predictShapes(image);
 	LOG(INFO) << "interval 11: " << clock() - curr;
 	curr = clock();
     return mRets.size();
   }
   
   
-  inline std::vector<cv::Rect> getResultCV() { return mRets; }
+  /*	fit the landmarks of face boxes found by another detector (e.g. a DNN on the Java side) */
+  inline int detFromBoxes(const cv::Mat& image, const std::vector<cv::Rect>& boxes) {
+    if (image.empty())
+      return 0;
+    CHECK(image.channels() == 1);
+    mRets = boxes;
+    predictShapes(image);
+    return mRets.size();
+  }
+
+  inline void setBoxSource(int source) { mBoxSource = source; }
+
+  inline const std::vector<cv::Rect>& getResultCV() const { return mRets; }
+
+  // number of detections the prior window was enough for
+  inline long getPriorHitNum() const { return mPriorHitNum; }
   
   
   std::unordered_map<int, dlib::full_object_detection>& getFaceShapeMap() {
@@ -13,6 +13,8 @@
 #include <jni_common/jni_utils.h>
 #include <detector.h>
 #include <jni.h>
+#include <algorithm>
+#include <string.h>
 #include <time.h>
 
 
@@ -45,7 +47,9 @@ class JNI_FaceDet {
   jfieldID mNativeContext;
 };
 
-// Protect getting/setting and creating/deleting pointer between java/native
+// Protect setting and deleting the pointer between java/native, the pointer is only read
+// by the native methods of the same FaceDet, which are synchronized on it, so reading needs no lock
+// (a global lock would serialize the detections of all FaceDet instances)
 std::mutex gLock;
 
 std::shared_ptr<JNI_FaceDet> getJNI_FaceDet(JNIEnv* env) {
@@ -58,7 +62,6 @@ std::shared_ptr<JNI_FaceDet> getJNI_FaceDet(JNIEnv* env) {
 }
 
 DetectorPtr const getDetectorPtr(JNIEnv* env, jobject thiz) {
-  std::lock_guard<std::mutex> lock(gLock);
   return getJNI_FaceDet(env)->getDetectorPtrFromJava(env, thiz);
 }
 
@@ -140,6 +143,41 @@ jobjectArray getDetectResult(JNIEnv* env, DetectorPtr faceDetector,
   return jDetRetArray;
 }
 
+/*	write the detections into a direct int buffer (see DET_RESULT_* in jni_primitives.h)
+	instead of building VisionDetRet objects, no Java object is created and no Java method is called,
+	at most capacity / DET_RESULT_STRIDE faces are written, the number of written faces is returned */
+jint writeDetectResult(DetectorPtr faceDetector, const int& size, jint* dst,
+                       const jlong& capacity) {
+  const std::vector<cv::Rect>& rects = faceDetector->getResultCV();
+  std::unordered_map<int, dlib::full_object_detection>& faceShapeMap =
+      faceDetector->getFaceShapeMap();
+  // the cascade classifier gives no score, every detection counts as certain
+  const float score = 1.0f;
+  int num = std::min<jlong>(size, capacity / DET_RESULT_STRIDE);
+  for (int i = 0; i < num; i++) {
+    jint* face = dst + i * DET_RESULT_STRIDE;
+    const cv::Rect& rect = rects[i];
+    face[DET_RESULT_LEFT] = rect.x;
+    face[DET_RESULT_TOP] = rect.y;
+    face[DET_RESULT_RIGHT] = rect.x + rect.width;
+    face[DET_RESULT_BOTTOM] = rect.y + rect.height;
+    memcpy(&face[DET_RESULT_SCORE], &score, sizeof(jint));
+    int landmarkNum = 0;
+    auto it = faceShapeMap.find(i);
+    if (it != faceShapeMap.end()) {
+      const dlib::full_object_detection& shape = it->second;
+      landmarkNum = std::min<int>(shape.num_parts(), DET_RESULT_MAX_LANDMARK_NUM);
+      jint* landmarks = face + DET_RESULT_LANDMARKS;
+      for (int j = 0; j < landmarkNum; j++) {
+        landmarks[2 * j] = shape.part(j).x();
+        landmarks[2 * j + 1] = shape.part(j).y();
+      }
+    }
+    face[DET_RESULT_LANDMARK_NUM] = landmarkNum;
+  }
+  return num;
+}
+
 JNIEXPORT jobjectArray JNICALL
     DLIB_FACE_JNI_METHOD(jniDetect)(JNIEnv* env, jobject thiz,
                                     jstring imgPath) {
@@ -203,6 +241,68 @@ JNIEXPORT jobjectArray JNICALL
 
 
 
+/*	detect on a gray Mat and write the results into a direct int buffer owned by the caller,
+	see writeDetectResult(), returns the number of faces written or -1 if the buffer is not direct
+	the prior face box (priorRight <= priorLeft if there is none) restricts the search, see DLibHOGFaceDetector::det() */
+JNIEXPORT jint JNICALL
+    DLIB_FACE_JNI_METHOD(jniGRAYMatDetectInto)(JNIEnv* env, jobject thiz,
+                                               jlong addrGRAYMat, jint priorLeft, jint priorTop,
+                                               jint priorRight, jint priorBottom, jobject resultBuffer) {
+  jint* dst = (jint*)env->GetDirectBufferAddress(resultBuffer);
+  jlong capacity = env->GetDirectBufferCapacity(resultBuffer);
+  if (dst == NULL || capacity < 0) {
+    return -1;
+  }
+  cv::Mat& grayMat = *(cv::Mat*)addrGRAYMat;
+  DetectorPtr detPtr = getDetectorPtr(env, thiz);
+  cv::Rect prior;
+  if (priorRight > priorLeft && priorBottom > priorTop) {
+    prior = cv::Rect(priorLeft, priorTop, priorRight - priorLeft, priorBottom - priorTop);
+  }
+  int size = detPtr->det(grayMat, prior);
+  LOG(INFO) << "det face size: " << size;
+  return writeDetectResult(detPtr, size, dst, capacity);
+}
+
+/*	fit the landmarks of boxNum face boxes (packed as left, top, right, bottom) on a gray Mat,
+	the results are written as by jniGRAYMatDetectInto(), no faces are written if boxNum does not fit the array */
+JNIEXPORT jint JNICALL
+    DLIB_FACE_JNI_METHOD(jniGRAYMatLandmarksInto)(JNIEnv* env, jobject thiz,
+                                                  jlong addrGRAYMat, jintArray jBoxes, jint boxNum,
+                                                  jobject resultBuffer) {
+  jint* dst = (jint*)env->GetDirectBufferAddress(resultBuffer);
+  jlong capacity = env->GetDirectBufferCapacity(resultBuffer);
+  if (dst == NULL || capacity < 0) {
+    return -1;
+  }
+  if (jBoxes == NULL || boxNum < 0 || boxNum > env->GetArrayLength(jBoxes) / 4) {
+    return 0;
+  }
+  std::vector<jint> packed(4 * boxNum);
+  env->GetIntArrayRegion(jBoxes, 0, 4 * boxNum, packed.data());
+  std::vector<cv::Rect> boxes(boxNum);
+  for (int i = 0; i < boxNum; i++) {
+    boxes[i] = cv::Rect(packed[4 * i], packed[4 * i + 1], packed[4 * i + 2] - packed[4 * i],
+                        packed[4 * i + 3] - packed[4 * i + 1]);
+  }
+  cv::Mat& grayMat = *(cv::Mat*)addrGRAYMat;
+  DetectorPtr detPtr = getDetectorPtr(env, thiz);
+  int size = detPtr->detFromBoxes(grayMat, boxes);
+  return writeDetectResult(detPtr, size, dst, capacity);
+}
+
+void JNIEXPORT JNICALL
+    DLIB_FACE_JNI_METHOD(jniSetBoxSource)(JNIEnv* env, jobject thiz, jint source) {
+  getDetectorPtr(env, thiz)->setBoxSource(source);
+}
+
+JNIEXPORT jlong JNICALL
+    DLIB_FACE_JNI_METHOD(jniGetPriorHitNum)(JNIEnv* env, jobject thiz) {
+  return getDetectorPtr(env, thiz)->getPriorHitNum();
+}
+
+
+
 
 
 